@@ -0,0 +1,162 @@
+package org.springframework.social.wechat;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.springframework.social.oauth2.AccessGrant;
+import org.springframework.util.Assert;
+
+/**
+ * Short-lived cache of authorization code exchanges, so that a code delivered twice to the login callback
+ * (browser retries, double clicks) is exchanged only once.
+ * A duplicate either waits for the exchange still in flight or gets the grant of the completed one,
+ * instead of failing with errcode 40163 (code been used) after a full round trip.
+ * Each exchange is bound to the OAuth2 state it arrived with: a grant is only handed to a callback carrying the same code and state,
+ * so a code leaked through logs or a Referer header is exchanged with WeChat again and rejected there, as if there were no cache.
+ * Exchanges without a state, and exchanges that fail, are not cached.
+ * The cache holds at most the configured number of codes; beyond that, the oldest entries are dropped first.
+ * @author Sam Song
+ */
+public class AuthorizationCodeExchangeCache {
+    public static final long DEFAULT_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final long ttlMillis;
+    private final int maxSize;
+    private final ConcurrentMap<String, Exchange> exchanges;
+    // all cached exchanges in creation order, which is also expiry order; may still hold exchanges already removed from the map
+    private final Queue<Exchange> creationOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    public AuthorizationCodeExchangeCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param ttlMillis how long a completed exchange is remembered, in milliseconds
+     * @param maxSize the maximum number of codes remembered
+     */
+    public AuthorizationCodeExchangeCache(long ttlMillis, int maxSize) {
+        Assert.isTrue(ttlMillis > 0, "ttlMillis must be positive");
+        Assert.isTrue(maxSize > 0, "maxSize must be positive");
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+        this.exchanges = new ConcurrentHashMap<>(Math.min(maxSize, 1024));
+    }
+
+    /**
+     * Exchanges the given code, or returns the result of an exchange of the same code and state that is in flight or recently completed.
+     * @param code the authorization code
+     * @param state the state parameter the code was delivered with, or null to bypass the cache
+     * @param exchange performs the actual exchange
+     * @return the access grant
+     */
+    public AccessGrant exchange(String code, String state, Supplier<AccessGrant> exchange) {
+        if (state == null) {
+            return exchange.get();
+        }
+        long now = System.currentTimeMillis();
+        evict(now);
+        Exchange existing = exchanges.get(code);
+        if (existing != null && existing.isExpired(now)) {
+            exchanges.remove(code, existing);
+            existing = null;
+        }
+        if (existing == null) {
+            Exchange created = new Exchange(code, state, now + ttlMillis);
+            existing = exchanges.putIfAbsent(code, created);
+            if (existing == null) {
+                creationOrder.add(created);
+                queued.incrementAndGet();
+                return complete(created, exchange);
+            }
+        }
+        if (!existing.state.equals(state)) {
+            // presented by another client: let WeChat's single-use check decide
+            return exchange.get();
+        }
+        return await(existing.grant);
+    }
+
+    /**
+     * @return the number of codes currently remembered
+     */
+    public int size() {
+        return exchanges.size();
+    }
+
+    // internal helpers
+
+    private AccessGrant complete(Exchange created, Supplier<AccessGrant> exchange) {
+        AccessGrant accessGrant;
+        try {
+            accessGrant = exchange.get();
+        } catch (RuntimeException e) {
+            exchanges.remove(created.code, created);
+            created.grant.completeExceptionally(e);
+            throw e;
+        }
+        if (accessGrant == null || accessGrant.getAccessToken() == null) {
+            exchanges.remove(created.code, created);
+        }
+        created.grant.complete(accessGrant);
+        return accessGrant;
+    }
+
+    private AccessGrant await(CompletableFuture<AccessGrant> grant) {
+        try {
+            return grant.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // drops exchanges from the head of the creation order while they are expired or the cache is full, O(1) per exchange;
+    // only one thread evicts at a time, the others carry on
+    private void evict(long now) {
+        if (!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Exchange eldest = creationOrder.peek(); eldest != null; eldest = creationOrder.peek()) {
+                if (queued.get() < maxSize && !eldest.isExpired(now)) {
+                    return;
+                }
+                creationOrder.poll();
+                queued.decrementAndGet();
+                exchanges.remove(eldest.code, eldest);
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    private static class Exchange {
+        private final CompletableFuture<AccessGrant> grant = new CompletableFuture<>();
+        private final String code;
+        private final String state;
+        private final long expireTime;
+
+        Exchange(String code, String state, long expireTime) {
+            this.code = code;
+            this.state = state;
+            this.expireTime = expireTime;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expireTime && grant.isDone();
+        }
+    }
+}
@@ -14,6 +14,8 @@ import org.springframework.social.support.ClientHttpRequestFactorySelector;
 import org.springframework.social.support.FormMapHttpMessageConverter;
 import org.springframework.social.support.LoggingErrorHandler;
 import org.springframework.social.wechat.api.WeChatAccessGrant;
+import org.springframework.social.wechat.api.WeChatApiException;
+import org.springframework.social.wechat.trace.WeChatTracer;
 import org.springframework.util.Assert;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
@@ -40,6 +42,7 @@ public class WeChatOAuth2Template implements OAuth2Operations {
     private String authenticateUrl;
     private RestTemplate restTemplate;
     private boolean useParametersForClientAuthentication;
+    private AuthorizationCodeExchangeCache authorizationCodeCache;
 
     /**
      * Constructs an WeChatOAuth2Template for a given set of client credentials.
@@ -85,6 +88,35 @@ public class WeChatOAuth2Template implements OAuth2Operations {
         this.useParametersForClientAuthentication = useParametersForClientAuthentication;
     }
 
+    /**
+     * Set the request factory on the underlying RestTemplate.
+     * This can be used to share one pooled HTTP client between many templates, or to configure custom SSL settings.
+     * When client credentials are sent as HTTP Basic, call {@link #setUseParametersForClientAuthentication(boolean)} first.
+     * @param requestFactory the request factory used by the underlying RestTemplate
+     */
+    public void setRequestFactory(ClientHttpRequestFactory requestFactory) {
+        Assert.notNull(requestFactory, "The requestFactory property cannot be null");
+        getRestTemplate().setRequestFactory(requestFactory);
+    }
+
+    /**
+     * Sets the cache used to exchange each authorization code only once, even when the login callback receives it twice.
+     * Only exchanges made through {@link #exchangeForAccess(String, String, String, MultiValueMap)} with a state are cached.
+     * @param authorizationCodeCache the cache, or null to exchange every code received
+     */
+    public void setAuthorizationCodeCache(AuthorizationCodeExchangeCache authorizationCodeCache) {
+        this.authorizationCodeCache = authorizationCodeCache;
+    }
+
+    /**
+     * Records a span for the OAuth calls of this template, e.g. code exchanges and refreshes.
+     * @param tracer the tracer
+     */
+    public void setTracer(WeChatTracer tracer) {
+        Assert.notNull(tracer, "The tracer property cannot be null");
+        tracer.install(getRestTemplate(), appId);
+    }
+
     @Override
     public String buildAuthorizeUrl(OAuth2Parameters parameters) {
         return buildAuthUrl(authorizeUrl, GrantType.AUTHORIZATION_CODE, parameters);
@@ -107,18 +139,24 @@ public class WeChatOAuth2Template implements OAuth2Operations {
 
     @Override
     public AccessGrant exchangeForAccess(String authorizationCode, String redirectUri, MultiValueMap<String, String> additionalParameters) {
-        MultiValueMap<String, String> params = new LinkedMultiValueMap<String, String>();
-        if (useParametersForClientAuthentication) {
-            params.set("appid", appId);
-            params.set("secret", appSecret);
-        }
-        params.set("code", authorizationCode);
-        params.set("redirect_uri", redirectUri);
-        params.set("grant_type", "authorization_code");
-        if (additionalParameters != null) {
-            params.putAll(additionalParameters);
+        return exchangeForAccess(authorizationCode, null, redirectUri, additionalParameters);
+    }
+
+    /**
+     * Exchanges an authorization code delivered with the given state.
+     * With an authorization code cache set, a repeated delivery of the same code and state reuses the first exchange.
+     * @param authorizationCode the authorization code
+     * @param state the state parameter of the callback, or null if unknown, in which case the code is always exchanged
+     * @param redirectUri the redirect URI the code was issued for
+     * @param additionalParameters any additional parameters to post to the access token endpoint, may be null
+     * @return the access grant
+     */
+    public AccessGrant exchangeForAccess(final String authorizationCode, String state, final String redirectUri,
+                                         final MultiValueMap<String, String> additionalParameters) {
+        if (authorizationCodeCache != null) {
+            return authorizationCodeCache.exchange(authorizationCode, state, () -> doExchangeForAccess(authorizationCode, redirectUri, additionalParameters));
         }
-        return postForAccessGrant(accessTokenUrl, params);
+        return doExchangeForAccess(authorizationCode, redirectUri, additionalParameters);
     }
 
     @Override
@@ -155,7 +193,7 @@ public class WeChatOAuth2Template implements OAuth2Operations {
         if (additionalParameters != null) {
             params.putAll(additionalParameters);
         }
-        return postForAccessGrant(refreshTokenUrl, params);
+        return postForCheckedAccessGrant(refreshTokenUrl, params);
     }
 
     @Override
@@ -252,6 +290,21 @@ public class WeChatOAuth2Template implements OAuth2Operations {
 
     // internal helpers
 
+    private AccessGrant doExchangeForAccess(String authorizationCode, String redirectUri, MultiValueMap<String, String> additionalParameters) {
+        MultiValueMap<String, String> params = new LinkedMultiValueMap<String, String>();
+        if (useParametersForClientAuthentication) {
+            params.set("appid", appId);
+            params.set("secret", appSecret);
+        }
+        params.set("code", authorizationCode);
+        params.set("redirect_uri", redirectUri);
+        params.set("grant_type", "authorization_code");
+        if (additionalParameters != null) {
+            params.putAll(additionalParameters);
+        }
+        return postForCheckedAccessGrant(accessTokenUrl, params);
+    }
+
     private String buildAuthUrl(String baseAuthUrl, GrantType grantType, OAuth2Parameters parameters) {
         StringBuilder authUrl = new StringBuilder(baseAuthUrl);
         if (grantType == GrantType.AUTHORIZATION_CODE) {
@@ -283,6 +336,24 @@ public class WeChatOAuth2Template implements OAuth2Operations {
         }
     }
 
+    // reports WeChat's errcode, so callers can tell a rejected code or refresh token from a transient failure,
+    // and waiters coalesced on the same code fail with the error instead of receiving a grant without a token
+    @SuppressWarnings("unchecked")
+    private AccessGrant postForCheckedAccessGrant(String url, MultiValueMap<String, String> parameters) {
+        Map<String, Object> result = getRestTemplate().postForObject(url, parameters, Map.class);
+        if (result == null) {
+            throw new WeChatApiException(-1, "Empty response from " + url);
+        }
+        Long errorCode = getIntegerValue(result, "errcode");
+        if (errorCode != null && errorCode != 0) {
+            throw new WeChatApiException(errorCode.intValue(), String.valueOf(result.get("errmsg")));
+        }
+        if (result.get("access_token") == null) {
+            throw new WeChatApiException(-1, "Response without access_token: " + result);
+        }
+        return extractAccessGrant(result);
+    }
+
     private AccessGrant extractAccessGrant(Map<String, Object> result) {
         return createAccessGrant((String) result.get("access_token"), (String) result.get("scope"),
                 (String) result.get("refresh_token"), getIntegerValue(result, "expires_in"), result);
@@ -301,6 +372,7 @@ public class WeChatOAuth2Template implements OAuth2Operations {
         MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
         List<MediaType> supportedMediaTypes = converter.getSupportedMediaTypes();
         List<MediaType> newMediaTypes = new ArrayList<>(supportedMediaTypes.size() + 1);
+        newMediaTypes.addAll(supportedMediaTypes);
         newMediaTypes.add(MediaType.TEXT_PLAIN);
         converter.setSupportedMediaTypes(newMediaTypes);
         return converter;
@@ -0,0 +1,68 @@
+package org.springframework.social.wechat.api;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class TemplateMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String toUser;
+    private final String templateId;
+    private String url;
+    private final Map<String, Field> data = new LinkedHashMap<>();
+
+    public TemplateMessage(String toUser, String templateId) {
+        this.toUser = toUser;
+        this.templateId = templateId;
+    }
+
+    public String getToUser() {
+        return toUser;
+    }
+
+    public String getTemplateId() {
+        return templateId;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public Map<String, Field> getData() {
+        return data;
+    }
+
+    public TemplateMessage addData(String name, String value) {
+        return addData(name, value, null);
+    }
+
+    public TemplateMessage addData(String name, String value, String color) {
+        data.put(name, new Field(value, color));
+        return this;
+    }
+
+    public static class Field implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String value;
+        private final String color;
+
+        public Field(String value, String color) {
+            this.value = value;
+            this.color = color;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public String getColor() {
+            return color;
+        }
+    }
+}
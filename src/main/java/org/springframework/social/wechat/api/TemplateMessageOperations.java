@@ -0,0 +1,14 @@
+package org.springframework.social.wechat.api;
+
+/**
+ * Sends template messages to followers of an official account.
+ * Requires the app access token of the official account, not a user access token.
+ */
+public interface TemplateMessageOperations {
+    /**
+     * @param message the message to send
+     * @return the msgid assigned by WeChat
+     * @throws WeChatApiException if WeChat rejects the message
+     */
+    long send(TemplateMessage message);
+}
@@ -4,4 +4,13 @@ public interface UserOperations {
     String getProfileId();
 
     WeChatUserProfile getUserProfile();
+
+    /**
+     * Checks whether the access token is still valid through WeChat's sns/auth endpoint,
+     * which is much cheaper than fetching the user profile.
+     * @return true if WeChat accepts the access token, false if it reports the token or openid invalid or expired
+     * @throws WeChatApiException if WeChat answers with any other errcode, e.g. -1 (system busy) or 45009 (quota reached),
+     * which says nothing about the token
+     */
+    boolean validateToken();
 }
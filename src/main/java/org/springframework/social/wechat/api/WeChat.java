@@ -5,5 +5,7 @@ import org.springframework.social.ApiBinding;
 public interface WeChat extends ApiBinding {
     UserOperations userOperations();
 
+    TemplateMessageOperations templateMessageOperations();
+
     void setOpenId(String openId);
 }
@@ -0,0 +1,25 @@
+package org.springframework.social.wechat.api;
+
+import org.springframework.social.ApiException;
+
+/**
+ * Thrown when the WeChat API answers a call with a non-zero errcode.
+ * @author Sam Song
+ */
+public class WeChatApiException extends ApiException {
+    private static final long serialVersionUID = 1L;
+
+    private final int errorCode;
+
+    public WeChatApiException(int errorCode, String errorMessage) {
+        super("wechat", "WeChat API error " + errorCode + ": " + errorMessage);
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * @return the errcode returned by WeChat, e.g. 40001 for an invalid access token
+     */
+    public int getErrorCode() {
+        return errorCode;
+    }
+}
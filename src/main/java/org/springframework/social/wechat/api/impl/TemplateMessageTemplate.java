@@ -0,0 +1,32 @@
+package org.springframework.social.wechat.api.impl;
+
+import org.springframework.social.wechat.api.TemplateMessage;
+import org.springframework.social.wechat.api.TemplateMessageOperations;
+import org.springframework.social.wechat.api.WeChatApiException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Map;
+
+public class TemplateMessageTemplate implements TemplateMessageOperations {
+    private final RestTemplate restTemplate;
+    private final String apiBaseUrl;
+
+    public TemplateMessageTemplate(RestTemplate restTemplate, String apiBaseUrl) {
+        this.restTemplate = restTemplate;
+        this.apiBaseUrl = apiBaseUrl;
+    }
+
+    @Override
+    public long send(TemplateMessage message) {
+        Map<?, ?> result = restTemplate.postForObject(templateSendUrl(), message, Map.class);
+        int errcode = UserTemplate.getErrorCode(result);
+        if (errcode != 0) {
+            throw new WeChatApiException(errcode, String.valueOf(result.get("errmsg")));
+        }
+        return Long.parseLong(String.valueOf(result.get("msgid")));
+    }
+
+    private String templateSendUrl() {
+        return apiBaseUrl + "/cgi-bin/message/template/send";
+    }
+}
@@ -1,21 +1,41 @@
 package org.springframework.social.wechat.api.impl;
 
 import org.springframework.social.wechat.api.UserOperations;
+import org.springframework.social.wechat.api.WeChatApiException;
 import org.springframework.social.wechat.api.WeChatUserProfile;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class UserTemplate implements UserOperations {
+    /**
+     * How long a prefetched profile is handed out by {@link #getUserProfile()} before it is fetched again.
+     */
+    public static final long PREFETCHED_PROFILE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    // invalid credential, invalid openid, invalid access token, access token expired, tokens revoked after a password change
+    private static final int[] INVALID_TOKEN_ERROR_CODES = {40001, 40003, 40014, 42001, 42007};
+
     private RestTemplate restTemplate;
     private final boolean isAuthorized;
+    private final String apiBaseUrl;
     private String openId;
+    private volatile PrefetchedProfile prefetchedProfile;
 
     public UserTemplate(RestTemplate restTemplate, boolean authorized) {
+        this(restTemplate, authorized, WeChatTemplate.DEFAULT_API_BASE_URL);
+    }
+
+    public UserTemplate(RestTemplate restTemplate, boolean authorized, String apiBaseUrl) {
         this.restTemplate = restTemplate;
         this.isAuthorized = authorized;
+        this.apiBaseUrl = apiBaseUrl;
     }
 
     public void setOpenId(String openId) {
@@ -27,8 +47,33 @@ public class UserTemplate implements UserOperations {
         return getUserProfile().getOpenId();
     }
 
+    /**
+     * Starts fetching the user profile in the background.
+     * Until {@link #PREFETCHED_PROFILE_TTL_MILLIS} have passed, {@link #getUserProfile()} returns the result of this single fetch,
+     * so that all callbacks of a sign-in share one userinfo call that overlaps with whatever the caller does meanwhile.
+     * @param executor the executor to fetch the profile on
+     */
+    public void prefetchUserProfile(Executor executor) {
+        prefetchedProfile = new PrefetchedProfile(CompletableFuture.supplyAsync(this::fetchUserProfile, executor));
+    }
+
     @Override
     public WeChatUserProfile getUserProfile() {
+        PrefetchedProfile prefetched = prefetchedProfile;
+        if (prefetched != null) {
+            if (!prefetched.isExpired()) {
+                try {
+                    return prefetched.profile.join();
+                } catch (CompletionException e) {
+                    // fall through and let a direct fetch report the failure
+                }
+            }
+            prefetchedProfile = null;
+        }
+        return fetchUserProfile();
+    }
+
+    private WeChatUserProfile fetchUserProfile() {
         // TODO: error response parsing
         UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(snsUserInfoUrl());
         if (openId != null) {
@@ -37,7 +82,57 @@ public class UserTemplate implements UserOperations {
         return restTemplate.getForObject(builder.build().toUri(), WeChatUserProfile.class);
     }
 
+    @Override
+    public boolean validateToken() {
+        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(snsAuthUrl());
+        if (openId != null) {
+            builder.queryParam("openid", this.openId);
+        }
+        Map<?, ?> result = restTemplate.getForObject(builder.build().toUri(), Map.class);
+        int errorCode = getErrorCode(result);
+        if (errorCode == 0) {
+            return true;
+        }
+        for (int invalid : INVALID_TOKEN_ERROR_CODES) {
+            if (errorCode == invalid) {
+                return false;
+            }
+        }
+        throw new WeChatApiException(errorCode, String.valueOf(result.get("errmsg")));
+    }
+
+    // for calls that always answer with an errcode, e.g. sns/auth: a response without one is an error, never a success
+    static int getErrorCode(Map<?, ?> result) {
+        Object errorCode = result != null ? result.get("errcode") : null;
+        if (errorCode == null) {
+            throw new WeChatApiException(-1, "Response without errcode: " + result);
+        }
+        try {
+            return Integer.parseInt(String.valueOf(errorCode));
+        } catch (NumberFormatException e) {
+            throw new WeChatApiException(-1, "Response with malformed errcode: " + result);
+        }
+    }
+
+    private String snsAuthUrl() {
+        return apiBaseUrl + "/sns/auth";
+    }
+
     private String snsUserInfoUrl() {
-        return "https://api.weixin.qq.com/sns/userinfo";
+        return apiBaseUrl + "/sns/userinfo";
+    }
+
+    private static class PrefetchedProfile {
+        private final CompletableFuture<WeChatUserProfile> profile;
+        private final long expireTime;
+
+        PrefetchedProfile(CompletableFuture<WeChatUserProfile> profile) {
+            this.profile = profile;
+            this.expireTime = System.currentTimeMillis() + PREFETCHED_PROFILE_TTL_MILLIS;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expireTime;
+        }
     }
 }
@@ -1,6 +1,7 @@
 package org.springframework.social.wechat.api.impl;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.Module;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -10,26 +11,55 @@ import org.springframework.http.converter.json.MappingJackson2HttpMessageConvert
 import org.springframework.social.oauth2.AbstractOAuth2ApiBinding;
 import org.springframework.social.oauth2.TokenStrategy;
 import org.springframework.social.wechat.api.Gender;
+import org.springframework.social.wechat.api.TemplateMessage;
+import org.springframework.social.wechat.api.TemplateMessageOperations;
 import org.springframework.social.wechat.api.UserOperations;
 import org.springframework.social.wechat.api.WeChat;
 import org.springframework.social.wechat.api.WeChatUserProfile;
+import org.springframework.social.wechat.trace.WeChatTracer;
 
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 
 public class WeChatTemplate extends AbstractOAuth2ApiBinding implements WeChat {
+    public static final String DEFAULT_API_BASE_URL = "https://api.weixin.qq.com";
+
+    // ObjectMapper is thread-safe once configured, so every binding shares a single instance.
+    private static final ObjectMapper OBJECT_MAPPER = createObjectMapper();
+
     private String openId;
     private UserTemplate userTemplate;
+    private TemplateMessageTemplate templateMessageTemplate;
 
     public WeChatTemplate() {
         super();
         userTemplate = new UserTemplate(getRestTemplate(), isAuthorized());
+        templateMessageTemplate = new TemplateMessageTemplate(getRestTemplate(), DEFAULT_API_BASE_URL);
     }
 
     public WeChatTemplate(String accessToken) {
+        this(accessToken, DEFAULT_API_BASE_URL);
+    }
+
+    /**
+     * Creates a binding that talks to the WeChat API at the given base URL, e.g. a local simulator.
+     * @param accessToken the access token
+     * @param apiBaseUrl the API base URL, without trailing slash
+     */
+    public WeChatTemplate(String accessToken, String apiBaseUrl) {
         super(accessToken, TokenStrategy.ACCESS_TOKEN_PARAMETER);
-        userTemplate = new UserTemplate(getRestTemplate(), isAuthorized());
+        userTemplate = new UserTemplate(getRestTemplate(), isAuthorized(), apiBaseUrl);
+        templateMessageTemplate = new TemplateMessageTemplate(getRestTemplate(), apiBaseUrl);
+    }
+
+    /**
+     * Records a span for every API call of this binding.
+     * @param tracer the tracer
+     * @param appId the appId recorded on the spans
+     */
+    public void setTracer(WeChatTracer tracer, String appId) {
+        tracer.install(getRestTemplate(), appId);
     }
 
     @Override
@@ -37,6 +67,11 @@ public class WeChatTemplate extends AbstractOAuth2ApiBinding implements WeChat {
         return userTemplate;
     }
 
+    @Override
+    public TemplateMessageOperations templateMessageOperations() {
+        return templateMessageTemplate;
+    }
+
     @Override
     public void setOpenId(String openId) {
         this.openId = openId;
@@ -48,16 +83,15 @@ public class WeChatTemplate extends AbstractOAuth2ApiBinding implements WeChat {
         MappingJackson2HttpMessageConverter converter = super.getJsonMessageConverter();
         List<MediaType> supportedMediaTypes = converter.getSupportedMediaTypes();
         List<MediaType> newMediaTypes = new ArrayList<>(supportedMediaTypes.size() + 1);
+        newMediaTypes.addAll(supportedMediaTypes);
         newMediaTypes.add(MediaType.TEXT_PLAIN);
         converter.setSupportedMediaTypes(newMediaTypes);
         // TODO: how to support error json parsing with 200 status code?
-        ObjectMapper objectMapper = new ObjectMapper();
-        objectMapper.registerModule(createWeChatModule());
-        converter.setObjectMapper(objectMapper);
+        converter.setObjectMapper(OBJECT_MAPPER);
         return converter;
     }
 
-    private class WeChatModule extends SimpleModule {
+    private static class WeChatModule extends SimpleModule {
         public WeChatModule() {
             super("WeChatModule");
         }
@@ -65,10 +99,12 @@ public class WeChatTemplate extends AbstractOAuth2ApiBinding implements WeChat {
         @Override
         public void setupModule(SetupContext context) {
             context.setMixInAnnotations(WeChatUserProfile.class, WeChatUserProfileMixin.class);
+            context.setMixInAnnotations(TemplateMessage.class, TemplateMessageMixin.class);
+            context.setMixInAnnotations(TemplateMessage.Field.class, TemplateMessageFieldMixin.class);
         }
 
         @JsonIgnoreProperties(ignoreUnknown = true)
-        abstract class WeChatUserProfileMixin {
+        abstract static class WeChatUserProfileMixin {
             @JsonProperty("sex")
             Gender sex;
             @JsonProperty("country")
@@ -86,9 +122,27 @@ public class WeChatTemplate extends AbstractOAuth2ApiBinding implements WeChat {
                     @JsonProperty("nickname") String nickname,
                     @JsonProperty("headimgurl") String headImgUrl) {}
         }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        abstract static class TemplateMessageMixin {
+            @JsonProperty("touser")
+            abstract String getToUser();
+            @JsonProperty("template_id")
+            abstract String getTemplateId();
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        abstract static class TemplateMessageFieldMixin {
+        }
+    }
+
+    private static ObjectMapper createObjectMapper() {
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.registerModule(createWeChatModule());
+        return objectMapper;
     }
 
-    private Module createWeChatModule() {
+    private static Module createWeChatModule() {
         return new WeChatModule();
     }
 }
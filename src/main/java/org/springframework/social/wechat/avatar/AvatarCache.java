@@ -0,0 +1,350 @@
+package org.springframework.social.wechat.avatar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.social.support.ClientHttpRequestFactorySelector;
+import org.springframework.social.wechat.api.WeChatUserProfile;
+import org.springframework.util.Assert;
+
+/**
+ * Disk cache of WeChat avatars, so that pages showing avatars do not depend on WeChat's CDN.
+ * Each size variant of an avatar is downloaded once, even under concurrent requests, and stored as a file in the cache directory.
+ * The total size of the cached files is capped; the least recently used files are deleted first.
+ * Cached avatars are served with {@link FileChannel#transferTo}, which lets the kernel copy the file without passing through the heap.
+ * WeChat gives an avatar a new URL when the user changes it, so feeding every fetched profile to {@link #update(WeChatUserProfile)}
+ * drops the files of the old URL; the last URL is remembered for a bounded number of users.
+ * Connection factories given the cache through {@code setAvatarCache} do so for every profile they fetch.
+ * Only avatars on WeChat's avatar hosts are downloaded, and no more than {@link #setMaxAvatarBytes(long) a bounded size} each,
+ * so a URL that does not come from a WeChat profile cannot make the cache fetch arbitrary resources.
+ * @author Sam Song
+ */
+public class AvatarCache {
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AVATAR_BYTES = 2L * 1024 * 1024;
+    public static final Set<String> DEFAULT_ALLOWED_HOSTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("thirdwx.qlogo.cn", "wx.qlogo.cn")));
+    // number of users whose last avatar URL is remembered by update(WeChatUserProfile)
+    private static final int MAX_TRACKED_USERS = 100000;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final ClientHttpRequestFactory requestFactory;
+    private final ConcurrentMap<String, CompletableFuture<Path>> downloads = new ConcurrentHashMap<>();
+    // openid -> last known headimgurl, least recently updated dropped first; guarded by itself
+    private final Map<String, String> headImgUrlsByOpenId = new LinkedHashMap<String, String>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_TRACKED_USERS;
+        }
+    };
+    private volatile Set<String> allowedHosts = DEFAULT_ALLOWED_HOSTS;
+    private volatile long maxAvatarBytes = DEFAULT_MAX_AVATAR_BYTES;
+    // file name -> file size, in access order; guarded by itself
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes;
+
+    public AvatarCache(Path directory) {
+        this(directory, DEFAULT_MAX_BYTES, ClientHttpRequestFactorySelector.getRequestFactory());
+    }
+
+    /**
+     * Creates a cache in the given directory, adopting the files a previous instance left there.
+     * @param directory the cache directory
+     * @param maxBytes the maximum total size of the cached files
+     * @param requestFactory the request factory used to download avatars
+     */
+    public AvatarCache(Path directory, long maxBytes, ClientHttpRequestFactory requestFactory) {
+        Assert.notNull(directory, "The directory property cannot be null");
+        Assert.notNull(requestFactory, "The requestFactory property cannot be null");
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.requestFactory = requestFactory;
+        loadExistingFiles();
+    }
+
+    /**
+     * Sets the hosts avatars may be downloaded from.
+     * @param allowedHosts the host names, {@link #DEFAULT_ALLOWED_HOSTS} by default
+     */
+    public void setAllowedHosts(Set<String> allowedHosts) {
+        Assert.notNull(allowedHosts, "The allowedHosts property cannot be null");
+        this.allowedHosts = Collections.unmodifiableSet(new HashSet<>(allowedHosts));
+    }
+
+    /**
+     * Sets the maximum size of a single avatar; larger downloads are aborted.
+     * @param maxAvatarBytes the maximum size in bytes, {@link #DEFAULT_MAX_AVATAR_BYTES} by default
+     */
+    public void setMaxAvatarBytes(long maxAvatarBytes) {
+        this.maxAvatarBytes = maxAvatarBytes;
+    }
+
+    /**
+     * Returns the cached file of the given avatar, downloading it first if needed.
+     * @param headImgUrl the headimgurl of a user profile, in any size
+     * @param size the size wanted
+     * @return the cached file
+     * @throws IllegalArgumentException if the URL is not an http(s) URL on one of the allowed hosts
+     * @throws UncheckedIOException if the avatar cannot be downloaded or stored
+     */
+    public Path getAvatar(String headImgUrl, AvatarSize size) {
+        String url = size.resolve(headImgUrl);
+        checkAllowed(url);
+        String fileName = fileName(url);
+        if (isCached(fileName)) {
+            return directory.resolve(fileName);
+        }
+        CompletableFuture<Path> download = new CompletableFuture<>();
+        CompletableFuture<Path> existing = downloads.putIfAbsent(fileName, download);
+        if (existing != null) {
+            return await(existing);
+        }
+        try {
+            // another thread may have finished downloading between the lookup and the putIfAbsent
+            download.complete(isCached(fileName) ? directory.resolve(fileName) : download(url, fileName));
+        } catch (Throwable e) {
+            // complete on any failure, or threads waiting for the same avatar would block forever
+            download.completeExceptionally(e);
+        } finally {
+            downloads.remove(fileName, download);
+        }
+        return await(download);
+    }
+
+    /**
+     * Writes the given avatar to the given channel, e.g. the channel of a servlet response or socket.
+     * @param headImgUrl the headimgurl of a user profile, in any size
+     * @param size the size wanted
+     * @param target the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if writing fails
+     */
+    public long transferTo(String headImgUrl, AvatarSize size, WritableByteChannel target) throws IOException {
+        try (FileChannel channel = open(headImgUrl, size)) {
+            long length = channel.size();
+            long position = 0;
+            while (position < length) {
+                position += channel.transferTo(position, length - position, target);
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Records the avatar of a freshly fetched profile, dropping the cached files of the user's previous avatar if it changed.
+     * @param profile the user profile
+     */
+    public void update(WeChatUserProfile profile) {
+        if (profile.getOpenId() == null || profile.getHeadImgUrl() == null) {
+            return;
+        }
+        String previous;
+        synchronized (headImgUrlsByOpenId) {
+            previous = headImgUrlsByOpenId.put(profile.getOpenId(), profile.getHeadImgUrl());
+        }
+        if (previous != null && !AvatarSize.ORIGINAL.resolve(previous).equals(AvatarSize.ORIGINAL.resolve(profile.getHeadImgUrl()))) {
+            invalidate(previous);
+        }
+    }
+
+    /**
+     * Deletes all cached size variants of the given avatar.
+     * @param headImgUrl the headimgurl of a user profile, in any size
+     */
+    public void invalidate(String headImgUrl) {
+        for (AvatarSize size : AvatarSize.values()) {
+            String fileName = fileName(size.resolve(headImgUrl));
+            synchronized (files) {
+                Long length = files.remove(fileName);
+                if (length != null) {
+                    totalBytes -= length;
+                    delete(fileName);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the total size of the cached files
+     */
+    public long getTotalBytes() {
+        synchronized (files) {
+            return totalBytes;
+        }
+    }
+
+    // internal helpers
+
+    private boolean isCached(String fileName) {
+        synchronized (files) {
+            return files.get(fileName) != null;
+        }
+    }
+
+    private void checkAllowed(String url) {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Not an avatar URL: " + url, e);
+        }
+        String scheme = uri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)
+                || uri.getHost() == null || !allowedHosts.contains(uri.getHost().toLowerCase())) {
+            throw new IllegalArgumentException("Not an avatar URL on an allowed host: " + url);
+        }
+    }
+
+    private FileChannel open(String headImgUrl, AvatarSize size) throws IOException {
+        try {
+            return FileChannel.open(getAvatar(headImgUrl, size), StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            // evicted between lookup and open: the second lookup downloads it again
+            return FileChannel.open(getAvatar(headImgUrl, size), StandardOpenOption.READ);
+        }
+    }
+
+    private Path download(String url, String fileName) {
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, fileName, ".tmp");
+            try {
+                ClientHttpResponse response = requestFactory.createRequest(URI.create(url), HttpMethod.GET).execute();
+                try {
+                    if (response.getRawStatusCode() / 100 != 2) {
+                        throw new IOException("Could not download avatar " + url + ": HTTP " + response.getRawStatusCode());
+                    }
+                    long limit = Math.min(maxAvatarBytes, maxBytes);
+                    if (response.getHeaders().getContentLength() > limit) {
+                        throw new IOException("Avatar " + url + " is larger than " + limit + " bytes");
+                    }
+                    try (InputStream body = response.getBody(); OutputStream out = Files.newOutputStream(temp)) {
+                        copy(body, out, limit, url);
+                    }
+                } finally {
+                    response.close();
+                }
+                Path file = directory.resolve(fileName);
+                long length = Files.size(temp);
+                // moved under the lock, so that a concurrent eviction of the same name cannot delete the new file
+                synchronized (files) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    add(fileName, length);
+                }
+                return file;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // evicted files are deleted under the lock, like files are moved into place under it, so a file is never deleted after being cached again
+    private void add(String fileName, long length) {
+        synchronized (files) {
+            Long previous = files.put(fileName, length);
+            totalBytes += length - (previous != null ? previous : 0);
+            for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator(); it.hasNext() && totalBytes > maxBytes;) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(fileName)) {
+                    continue;
+                }
+                it.remove();
+                totalBytes -= eldest.getValue();
+                delete(eldest.getKey());
+            }
+        }
+    }
+
+    private void delete(String fileName) {
+        try {
+            Files.deleteIfExists(directory.resolve(fileName));
+        } catch (IOException e) {
+            // a file that cannot be deleted now is adopted again on the next start
+        }
+    }
+
+    private void loadExistingFiles() {
+        File[] existing = directory.toFile().listFiles((dir, name) -> !name.endsWith(".tmp"));
+        if (existing == null) {
+            return;
+        }
+        Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+        for (File file : existing) {
+            add(file.getName(), file.length());
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> download) {
+        try {
+            return download.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // copies at most limit bytes, failing instead of filling the disk if the body is longer than announced
+    private static void copy(InputStream in, OutputStream out, long limit, String url) throws IOException {
+        byte[] buffer = new byte[8192];
+        long copied = 0;
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer)) {
+            copied += n;
+            if (copied > limit) {
+                throw new IOException("Avatar " + url + " is larger than " + limit + " bytes");
+            }
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private static String fileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // should not happen, SHA-256 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package org.springframework.social.wechat.avatar;
+
+/**
+ * The square sizes WeChat serves an avatar in, selected by the last path segment of the headimgurl.
+ * @author Sam Song
+ */
+public enum AvatarSize {
+    SIZE_46("46"),
+    SIZE_64("64"),
+    SIZE_96("96"),
+    SIZE_132("132"),
+    /**
+     * 640x640, the size of the headimgurl returned in the user profile.
+     */
+    ORIGINAL("0");
+
+    private final String suffix;
+
+    AvatarSize(String suffix) {
+        this.suffix = suffix;
+    }
+
+    /**
+     * Rewrites a headimgurl to point at this size; URLs without a size suffix are returned unchanged.
+     * @param headImgUrl the headimgurl of a user profile, in any size
+     * @return the URL of the avatar in this size
+     */
+    public String resolve(String headImgUrl) {
+        int slash = headImgUrl.lastIndexOf('/');
+        if (slash < 0 || fromSuffix(headImgUrl.substring(slash + 1)) == null) {
+            return headImgUrl;
+        }
+        return headImgUrl.substring(0, slash + 1) + suffix;
+    }
+
+    static AvatarSize fromSuffix(String suffix) {
+        for (AvatarSize size : values()) {
+            if (size.suffix.equals(suffix)) {
+                return size;
+            }
+        }
+        return null;
+    }
+}
@@ -6,14 +6,43 @@ import org.springframework.social.connect.UserProfile;
 import org.springframework.social.connect.UserProfileBuilder;
 import org.springframework.social.wechat.api.WeChat;
 import org.springframework.social.wechat.api.WeChatUserProfile;
+import org.springframework.social.wechat.avatar.AvatarCache;
 import org.springframework.web.client.HttpClientErrorException;
 
 public class WeChatAdapter implements ApiAdapter<WeChat> {
+    private final String appId;
+    private WeChatIdentityResolver identityResolver;
+    private AvatarCache avatarCache;
+
+    public WeChatAdapter() {
+        this(null);
+    }
+
+    public WeChatAdapter(String appId) {
+        this.appId = appId;
+    }
+
+    /**
+     * Sets the resolver that is fed with the identity found in every fetched profile.
+     * Only used when the adapter knows its appId.
+     * @param identityResolver the identity resolver, or null to stop recording identities
+     */
+    public void setIdentityResolver(WeChatIdentityResolver identityResolver) {
+        this.identityResolver = identityResolver;
+    }
+
+    /**
+     * Sets the avatar cache that is fed with every fetched profile, so cached files of a changed avatar are dropped.
+     * @param avatarCache the avatar cache, or null to stop updating it
+     */
+    public void setAvatarCache(AvatarCache avatarCache) {
+        this.avatarCache = avatarCache;
+    }
+
     @Override
     public boolean test(WeChat api) {
         try {
-            api.userOperations().getUserProfile();
-            return true;
+            return api.userOperations().validateToken();
         } catch (HttpClientErrorException e) {
             return false;
         }
@@ -21,7 +50,7 @@ public class WeChatAdapter implements ApiAdapter<WeChat> {
 
     @Override
     public void setConnectionValues(WeChat api, ConnectionValues values) {
-        WeChatUserProfile profile = api.userOperations().getUserProfile();
+        WeChatUserProfile profile = getUserProfile(api);
         values.setProviderUserId(profile.getOpenId());
         values.setDisplayName(profile.getNickname());
         values.setImageUrl(profile.getHeadImgUrl());
@@ -31,7 +60,7 @@ public class WeChatAdapter implements ApiAdapter<WeChat> {
 
     @Override
     public UserProfile fetchUserProfile(WeChat api) {
-        WeChatUserProfile profile = api.userOperations().getUserProfile();
+        WeChatUserProfile profile = getUserProfile(api);
         return new UserProfileBuilder().setName(profile.getNickname()).build();
     }
 
@@ -39,4 +68,17 @@ public class WeChatAdapter implements ApiAdapter<WeChat> {
     public void updateStatus(WeChat api, String message) {
         // TODO: update status
     }
+
+    // internal helpers
+
+    private WeChatUserProfile getUserProfile(WeChat api) {
+        WeChatUserProfile profile = api.userOperations().getUserProfile();
+        if (identityResolver != null && appId != null && profile != null) {
+            identityResolver.record(appId, profile);
+        }
+        if (avatarCache != null && profile != null) {
+            avatarCache.update(profile);
+        }
+        return profile;
+    }
 }
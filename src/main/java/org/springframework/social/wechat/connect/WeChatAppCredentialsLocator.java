@@ -0,0 +1,15 @@
+package org.springframework.social.wechat.connect;
+
+/**
+ * Strategy for looking up the secret of a WeChat app by its appId.
+ * Consulted by {@link WeChatConnectionFactoryRegistry} whenever it (re)creates the connection factory of an app,
+ * so implementations can read from a database or secret store and pick up rotated secrets.
+ * @author Sam Song
+ */
+public interface WeChatAppCredentialsLocator {
+    /**
+     * @param appId the WeChat app id
+     * @return the current app secret, or null if the app is unknown
+     */
+    String getAppSecret(String appId);
+}
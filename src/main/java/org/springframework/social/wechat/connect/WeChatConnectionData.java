@@ -0,0 +1,39 @@
+package org.springframework.social.wechat.connect;
+
+import org.springframework.social.connect.ConnectionData;
+
+/**
+ * {@link ConnectionData} that additionally carries when the refresh token was issued and when it expires.
+ * WeChat refresh tokens live for 30 days from authorization and are not extended by refreshing the access token,
+ * so once the refresh token expires the user has to authorize again.
+ * @author Sam Song
+ */
+public class WeChatConnectionData extends ConnectionData {
+    private static final long serialVersionUID = 1L;
+
+    private final Long refreshTokenIssueTime;
+
+    private final Long refreshTokenExpireTime;
+
+    public WeChatConnectionData(String providerId, String providerUserId, String displayName, String profileUrl, String imageUrl,
+                                String accessToken, String secret, String refreshToken, Long expireTime,
+                                Long refreshTokenIssueTime, Long refreshTokenExpireTime) {
+        super(providerId, providerUserId, displayName, profileUrl, imageUrl, accessToken, secret, refreshToken, expireTime);
+        this.refreshTokenIssueTime = refreshTokenIssueTime;
+        this.refreshTokenExpireTime = refreshTokenExpireTime;
+    }
+
+    /**
+     * @return the time the refresh token was issued, in milliseconds since the epoch, or null if unknown
+     */
+    public Long getRefreshTokenIssueTime() {
+        return refreshTokenIssueTime;
+    }
+
+    /**
+     * @return the time the refresh token expires, in milliseconds since the epoch, or null if unknown
+     */
+    public Long getRefreshTokenExpireTime() {
+        return refreshTokenExpireTime;
+    }
+}
@@ -1,21 +1,142 @@
 package org.springframework.social.wechat.connect;
 
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.support.OAuth2ConnectionFactory;
 import org.springframework.social.oauth2.AccessGrant;
 import org.springframework.social.oauth2.OAuth2ServiceProvider;
+import org.springframework.social.wechat.api.UserOperations;
 import org.springframework.social.wechat.api.WeChat;
 import org.springframework.social.wechat.api.WeChatAccessGrant;
+import org.springframework.social.wechat.api.impl.UserTemplate;
+import org.springframework.social.wechat.avatar.AvatarCache;
+import org.springframework.social.wechat.trace.WeChatTracer;
+
+import java.util.concurrent.Executor;
 
 public class WeChatConnectionFactory extends OAuth2ConnectionFactory<WeChat> {
+    private final String appId;
+    private WeChatIdentityResolver identityResolver;
+    private Executor profilePrefetchExecutor;
+    private long expirySkewMillis;
+    private WeChatStateTokenService stateTokenService;
+
     public WeChatConnectionFactory(String appId, String appSecret) {
-        super("wechat", new WeChatServiceProvider(appId, appSecret), new WeChatAdapter());
+        this(appId, appSecret, null);
+    }
+
+    public WeChatConnectionFactory(String appId, String appSecret, ClientHttpRequestFactory requestFactory) {
+        this(appId, new WeChatServiceProvider(appId, appSecret, requestFactory));
+    }
+
+    /**
+     * Creates a factory around a preconfigured service provider, e.g. one pointed at a local simulator.
+     * @param appId the WeChat app id the service provider was created for
+     * @param serviceProvider the service provider
+     */
+    public WeChatConnectionFactory(String appId, WeChatServiceProvider serviceProvider) {
+        super("wechat", serviceProvider, new WeChatAdapter(appId));
+        this.appId = appId;
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * Sets the resolver that is fed with the unionid/openid pair of every access grant and fetched profile of this app.
+     * @param identityResolver the identity resolver, or null to stop recording identities
+     */
+    public void setIdentityResolver(WeChatIdentityResolver identityResolver) {
+        this.identityResolver = identityResolver;
+        ((WeChatAdapter) getApiAdapter()).setIdentityResolver(identityResolver);
+    }
+
+    /**
+     * Sets the avatar cache that is fed with every profile fetched through this factory's connections.
+     * @param avatarCache the avatar cache, or null to stop updating it
+     */
+    public void setAvatarCache(AvatarCache avatarCache) {
+        ((WeChatAdapter) getApiAdapter()).setAvatarCache(avatarCache);
+    }
+
+    /**
+     * Records spans for the OAuth and API calls made through this factory's service provider.
+     * @param tracer the tracer
+     */
+    public void setTracer(WeChatTracer tracer) {
+        ((WeChatServiceProvider) getServiceProvider()).setTracer(tracer);
+    }
+
+    /**
+     * Sets the executor on which the user profile of a new connection is fetched as soon as the access grant carries the openid.
+     * The fetch then overlaps with the connection repository lookup of the sign-in, and every adapter callback
+     * (connection values, {@link Connection#fetchUserProfile()}) reuses its result.
+     * @param profilePrefetchExecutor the executor, or null to fetch the profile lazily on each callback
+     */
+    public void setProfilePrefetchExecutor(Executor profilePrefetchExecutor) {
+        this.profilePrefetchExecutor = profilePrefetchExecutor;
+    }
+
+    /**
+     * Sets how long before their actual expiry the access tokens of connections created from now on count as expired.
+     * @param expirySkewMillis the skew in milliseconds, 0 by default
+     * @see WeChatOAuth2Connection#setExpirySkew(long)
+     */
+    public void setExpirySkew(long expirySkewMillis) {
+        this.expirySkewMillis = expirySkewMillis;
+    }
+
+    /**
+     * Sets the service creating the signed, time-bounded state tokens of the WeChat login flow.
+     * {@link org.springframework.social.wechat.security.WeChatAuthenticationService} binds them to the browser through a nonce cookie
+     * and verifies them on any node; {@link #generateState()}, used by flows that keep the state in the HTTP session, returns unbound tokens.
+     * @param stateTokenService the state token service, or null to generate random states
+     */
+    public void setStateTokenService(WeChatStateTokenService stateTokenService) {
+        this.stateTokenService = stateTokenService;
+    }
+
+    /**
+     * @return the state token service, or null if states are random
+     */
+    public WeChatStateTokenService getStateTokenService() {
+        return stateTokenService;
+    }
+
+    @Override
+    public String generateState() {
+        return stateTokenService != null ? stateTokenService.createState() : super.generateState();
     }
 
     @Override
     public Connection<WeChat> createConnection(AccessGrant accessGrant) {
-        return new WeChatOAuth2Connection(getProviderId(), extractProviderUserId(accessGrant), accessGrant.getAccessToken(),
+        if (identityResolver != null && accessGrant instanceof WeChatAccessGrant) {
+            identityResolver.record(appId, (WeChatAccessGrant) accessGrant);
+        }
+        String providerUserId = extractProviderUserId(accessGrant);
+        WeChatOAuth2Connection connection = new WeChatOAuth2Connection(getProviderId(), providerUserId, accessGrant.getAccessToken(),
                 accessGrant.getRefreshToken(), accessGrant.getExpireTime(), (OAuth2ServiceProvider<WeChat>)getServiceProvider(), getApiAdapter());
+        if (expirySkewMillis != 0) {
+            connection.setExpirySkew(expirySkewMillis);
+        }
+        if (profilePrefetchExecutor != null && providerUserId != null) {
+            UserOperations userOperations = connection.getApi().userOperations();
+            if (userOperations instanceof UserTemplate) {
+                ((UserTemplate) userOperations).prefetchUserProfile(profilePrefetchExecutor);
+            }
+        }
+        return connection;
+    }
+
+    @Override
+    public Connection<WeChat> createConnection(ConnectionData data) {
+        WeChatOAuth2Connection connection = new WeChatOAuth2Connection(data, (OAuth2ServiceProvider<WeChat>) getServiceProvider(), getApiAdapter());
+        if (expirySkewMillis != 0) {
+            connection.setExpirySkew(expirySkewMillis);
+        }
+        return connection;
     }
 
     @Override
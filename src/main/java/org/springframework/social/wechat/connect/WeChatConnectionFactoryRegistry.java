@@ -0,0 +1,223 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.social.support.ClientHttpRequestFactorySelector;
+import org.springframework.social.wechat.avatar.AvatarCache;
+import org.springframework.social.wechat.trace.WeChatTracer;
+import org.springframework.util.Assert;
+
+/**
+ * Registry of {@link WeChatConnectionFactory} instances keyed by appId, for applications that run one WeChat app per tenant.
+ * Factories are created lazily on first lookup with the secret returned by a {@link WeChatAppCredentialsLocator},
+ * and all of them share a single {@link ClientHttpRequestFactory} so the number of tenants does not multiply connection pools.
+ * Tenants that have not been looked up for longer than the idle timeout are dropped by {@link #evictIdle()},
+ * which is expected to be called periodically, e.g. from a scheduled task.
+ * @author Sam Song
+ */
+public class WeChatConnectionFactoryRegistry {
+    public static final long DEFAULT_MAX_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final WeChatAppCredentialsLocator credentialsLocator;
+    private final ClientHttpRequestFactory requestFactory;
+    private final ConcurrentMap<String, Registration> registrations = new ConcurrentHashMap<>();
+    private volatile long maxIdleMillis = DEFAULT_MAX_IDLE_MILLIS;
+    private volatile WeChatIdentityResolver identityResolver;
+    private volatile AvatarCache avatarCache;
+    private volatile WeChatTracer tracer;
+    private volatile WeChatStateTokenService stateTokenService;
+    private volatile String openBaseUrl = WeChatServiceProvider.OPEN_BASE_URL;
+    private volatile String apiBaseUrl = WeChatServiceProvider.API_BASE_URL;
+
+    public WeChatConnectionFactoryRegistry(WeChatAppCredentialsLocator credentialsLocator) {
+        this(credentialsLocator, ClientHttpRequestFactorySelector.getRequestFactory());
+    }
+
+    public WeChatConnectionFactoryRegistry(WeChatAppCredentialsLocator credentialsLocator, ClientHttpRequestFactory requestFactory) {
+        Assert.notNull(credentialsLocator, "The credentialsLocator property cannot be null");
+        Assert.notNull(requestFactory, "The requestFactory property cannot be null");
+        this.credentialsLocator = credentialsLocator;
+        this.requestFactory = requestFactory;
+    }
+
+    /**
+     * Sets how long a tenant may go without a lookup before {@link #evictIdle()} drops its connection factory.
+     * @param maxIdleMillis the idle timeout in milliseconds
+     */
+    public void setMaxIdleMillis(long maxIdleMillis) {
+        this.maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Sets the identity resolver given to every connection factory created from now on,
+     * so that unionids seen in any app are indexed in one place.
+     * @param identityResolver the identity resolver shared by all apps
+     */
+    public void setIdentityResolver(WeChatIdentityResolver identityResolver) {
+        this.identityResolver = identityResolver;
+    }
+
+    /**
+     * Sets the avatar cache given to every connection factory created from now on.
+     * @param avatarCache the avatar cache shared by all apps
+     */
+    public void setAvatarCache(AvatarCache avatarCache) {
+        this.avatarCache = avatarCache;
+    }
+
+    /**
+     * Sets the tracer given to every connection factory created from now on.
+     * @param tracer the tracer shared by all apps
+     */
+    public void setTracer(WeChatTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Sets the state token service given to every connection factory created from now on.
+     * @param stateTokenService the state token service shared by all apps
+     */
+    public void setStateTokenService(WeChatStateTokenService stateTokenService) {
+        this.stateTokenService = stateTokenService;
+    }
+
+    /**
+     * Sets the base URLs used by connection factories created from now on, e.g. to point all tenants at a local simulator.
+     * @param openBaseUrl the base URL of the authorization pages, without trailing slash
+     * @param apiBaseUrl the base URL of the token and API endpoints, without trailing slash
+     */
+    public void setBaseUrls(String openBaseUrl, String apiBaseUrl) {
+        this.openBaseUrl = openBaseUrl;
+        this.apiBaseUrl = apiBaseUrl;
+    }
+
+    /**
+     * Returns the connection factory of the given app, creating it on first use.
+     * @param appId the WeChat app id
+     * @return the connection factory of the app
+     * @throws IllegalArgumentException if the credentials locator does not know the app
+     */
+    public WeChatConnectionFactory getConnectionFactory(String appId) {
+        Registration registration = registrations.get(appId);
+        if (registration == null) {
+            // the secret is read outside of any map lock, so a slow credentials locator only delays lookups of this app
+            Registration created = new Registration();
+            registration = registrations.putIfAbsent(appId, created);
+            if (registration == null) {
+                registration = created;
+                register(appId, created);
+            }
+        }
+        registration.lastAccessTime = System.currentTimeMillis();
+        return registration.await();
+    }
+
+    /**
+     * Drops the connection factory of the given app so that the next lookup re-reads its secret from the credentials locator.
+     * Connections already created by the old factory keep using the old secret until they are discarded.
+     * @param appId the WeChat app id
+     */
+    public void rotateCredentials(String appId) {
+        registrations.remove(appId);
+    }
+
+    /**
+     * Drops the connection factories of all apps that have been idle longer than the idle timeout.
+     * @return the number of apps evicted
+     */
+    public int evictIdle() {
+        long idleSince = System.currentTimeMillis() - maxIdleMillis;
+        int evicted = 0;
+        for (Iterator<Map.Entry<String, Registration>> it = registrations.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().lastAccessTime < idleSince) {
+                it.remove();
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * @return the number of apps that currently have a connection factory
+     */
+    public int size() {
+        return registrations.size();
+    }
+
+    // subclassing hooks
+
+    /**
+     * Creates the connection factory of an app.
+     * May be overridden to customize the factory, e.g. to set its scope.
+     * @param appId the WeChat app id
+     * @param appSecret the WeChat app secret
+     * @param requestFactory the request factory shared by all apps
+     * @return a new {@link WeChatConnectionFactory}
+     */
+    protected WeChatConnectionFactory createConnectionFactory(String appId, String appSecret, ClientHttpRequestFactory requestFactory) {
+        return new WeChatConnectionFactory(appId, new WeChatServiceProvider(appId, appSecret, openBaseUrl, apiBaseUrl, requestFactory));
+    }
+
+    // internal helpers
+
+    private void register(String appId, Registration registration) {
+        try {
+            registration.connectionFactory.complete(createConnectionFactory(appId));
+        } catch (Throwable e) {
+            // not cached, so the next lookup asks the credentials locator again; errors too, or the app would stay blocked forever
+            registrations.remove(appId, registration);
+            registration.connectionFactory.completeExceptionally(e);
+        }
+    }
+
+    private WeChatConnectionFactory createConnectionFactory(String appId) {
+        String appSecret = credentialsLocator.getAppSecret(appId);
+        if (appSecret == null) {
+            throw new IllegalArgumentException("Unknown WeChat app: " + appId);
+        }
+        WeChatConnectionFactory connectionFactory = createConnectionFactory(appId, appSecret, requestFactory);
+        if (identityResolver != null) {
+            connectionFactory.setIdentityResolver(identityResolver);
+        }
+        if (avatarCache != null) {
+            connectionFactory.setAvatarCache(avatarCache);
+        }
+        if (tracer != null) {
+            connectionFactory.setTracer(tracer);
+        }
+        if (stateTokenService != null) {
+            connectionFactory.setStateTokenService(stateTokenService);
+        }
+        return connectionFactory;
+    }
+
+    private static class Registration {
+        private final CompletableFuture<WeChatConnectionFactory> connectionFactory = new CompletableFuture<>();
+        private final Thread registeringThread = Thread.currentThread();
+        private volatile long lastAccessTime = System.currentTimeMillis();
+
+        WeChatConnectionFactory await() {
+            if (!connectionFactory.isDone() && registeringThread == Thread.currentThread()) {
+                throw new IllegalStateException("The credentials locator must not look up the app it is resolving");
+            }
+            try {
+                return connectionFactory.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+}
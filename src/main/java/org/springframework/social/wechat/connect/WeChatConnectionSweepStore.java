@@ -0,0 +1,32 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.List;
+
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * Access to stored WeChat connections for {@link WeChatConnectionSweeper}.
+ * Connections are read in pages ordered by provider user id, so that pages stay stable while dead connections are removed.
+ * @author Sam Song
+ */
+public interface WeChatConnectionSweepStore {
+    /**
+     * @param afterProviderUserId the provider user id of the last connection of the previous page, or null for the first page
+     * @param pageSize the maximum number of connections to return
+     * @return the next page of connections, ordered by provider user id
+     */
+    List<ConnectionData> findConnections(String afterProviderUserId, int pageSize);
+
+    /**
+     * Stores the renewed tokens of the given connections.
+     * @param connections the renewed connections
+     */
+    void updateConnections(List<ConnectionData> connections);
+
+    /**
+     * Marks the given connections as dead, i.e. requiring the user to authorize again.
+     * @param connections the keys of the dead connections
+     */
+    void markDead(List<ConnectionKey> connections);
+}
@@ -0,0 +1,217 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.wechat.api.WeChat;
+import org.springframework.social.wechat.api.WeChatApiException;
+import org.springframework.util.Assert;
+
+/**
+ * Background task that keeps stored WeChat connections healthy, so users do not hit a failing refresh on the hot path.
+ * It scans the connections of a {@link WeChatConnectionSweepStore} page by page, renews access tokens that expire within the renew window,
+ * and marks connections dead in bulk once their refresh token has expired or been rejected.
+ * Renewals run on the given executor, whose pool size bounds the parallelism.
+ * Intended to be scheduled periodically, e.g. with a {@link java.util.concurrent.ScheduledExecutorService}.
+ * @author Sam Song
+ */
+public class WeChatConnectionSweeper implements Runnable {
+    private static final Log logger = LogFactory.getLog(WeChatConnectionSweeper.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+    public static final long DEFAULT_RENEW_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    // invalid refresh token, refresh token expired, tokens revoked after a password change
+    private static final int[] INVALID_REFRESH_TOKEN_ERROR_CODES = {40030, 42002, 42007};
+
+    private final WeChatConnectionFactory connectionFactory;
+    private final WeChatConnectionSweepStore store;
+    private final ExecutorService executorService;
+    private int pageSize = DEFAULT_PAGE_SIZE;
+    private long renewWindowMillis = DEFAULT_RENEW_WINDOW_MILLIS;
+
+    public WeChatConnectionSweeper(WeChatConnectionFactory connectionFactory, WeChatConnectionSweepStore store, ExecutorService executorService) {
+        Assert.notNull(connectionFactory, "The connectionFactory property cannot be null");
+        Assert.notNull(store, "The store property cannot be null");
+        Assert.notNull(executorService, "The executorService property cannot be null");
+        this.connectionFactory = connectionFactory;
+        this.store = store;
+        this.executorService = executorService;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Sets how long before its expiry an access token is renewed.
+     * @param renewWindowMillis the renew window in milliseconds
+     */
+    public void setRenewWindowMillis(long renewWindowMillis) {
+        this.renewWindowMillis = renewWindowMillis;
+    }
+
+    @Override
+    public void run() {
+        try {
+            SweepResult result = sweep();
+            logger.info("WeChat connection sweep finished: " + result);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sweeps all stored connections once.
+     * @return the counts of the sweep
+     * @throws InterruptedException if interrupted while waiting for renewals
+     */
+    public SweepResult sweep() throws InterruptedException {
+        SweepResult result = new SweepResult();
+        String after = null;
+        List<ConnectionData> page;
+        do {
+            page = store.findConnections(after, pageSize);
+            if (page.isEmpty()) {
+                break;
+            }
+            sweepPage(page, result);
+            after = page.get(page.size() - 1).getProviderUserId();
+        } while (page.size() >= pageSize);
+        return result;
+    }
+
+    // internal helpers
+
+    private void sweepPage(List<ConnectionData> page, SweepResult result) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        List<ConnectionKey> dead = new ArrayList<>();
+        List<ConnectionData> renewing = new ArrayList<>();
+        List<Future<ConnectionData>> renewals = new ArrayList<>();
+        for (final ConnectionData data : page) {
+            result.scanned++;
+            if (hasRefreshTokenExpired(data, now)) {
+                dead.add(new ConnectionKey(data.getProviderId(), data.getProviderUserId()));
+            } else if (data.getExpireTime() != null && data.getExpireTime() - now <= renewWindowMillis) {
+                renewing.add(data);
+                renewals.add(executorService.submit(() -> renew(data)));
+            }
+        }
+        List<ConnectionData> renewed = new ArrayList<>(renewals.size());
+        int i = 0;
+        try {
+            for (; i < renewals.size(); i++) {
+                collect(renewing.get(i), renewals.get(i), renewed, dead, result);
+            }
+        } finally {
+            if (i < renewals.size()) {
+                // interrupted: refreshes that already finished may have rotated the tokens on WeChat's side, so keep them
+                for (; i < renewals.size(); i++) {
+                    Future<ConnectionData> renewal = renewals.get(i);
+                    if (renewal.isDone() && !renewal.isCancelled()) {
+                        collect(renewing.get(i), renewal, renewed, dead, result);
+                    } else {
+                        renewal.cancel(false);
+                    }
+                }
+            }
+            if (!renewed.isEmpty()) {
+                store.updateConnections(renewed);
+                result.renewed += renewed.size();
+            }
+            if (!dead.isEmpty()) {
+                store.markDead(dead);
+                result.dead += dead.size();
+            }
+        }
+    }
+
+    private void collect(ConnectionData data, Future<ConnectionData> renewal, List<ConnectionData> renewed, List<ConnectionKey> dead, SweepResult result)
+            throws InterruptedException {
+        try {
+            ConnectionData renewedData = renewal.get();
+            if (renewedData != null) {
+                renewed.add(renewedData);
+            } else {
+                dead.add(new ConnectionKey(data.getProviderId(), data.getProviderUserId()));
+            }
+        } catch (ExecutionException e) {
+            result.failed++;
+            logger.warn("Could not renew connection " + data.getProviderUserId(), e.getCause());
+        }
+    }
+
+    private boolean hasRefreshTokenExpired(ConnectionData data, long now) {
+        if (data.getRefreshToken() == null) {
+            return data.getExpireTime() != null && data.getExpireTime() <= now;
+        }
+        if (data instanceof WeChatConnectionData) {
+            Long refreshTokenExpireTime = ((WeChatConnectionData) data).getRefreshTokenExpireTime();
+            return refreshTokenExpireTime != null && refreshTokenExpireTime <= now;
+        }
+        return false;
+    }
+
+    // returns null if WeChat rejected the refresh token; any other failure is thrown and retried by the next sweep
+    private ConnectionData renew(ConnectionData data) {
+        Connection<WeChat> connection = connectionFactory.createConnection(data);
+        try {
+            connection.refresh();
+        } catch (WeChatApiException e) {
+            for (int invalid : INVALID_REFRESH_TOKEN_ERROR_CODES) {
+                if (e.getErrorCode() == invalid) {
+                    return null;
+                }
+            }
+            throw e;
+        }
+        ConnectionData renewed = connection.createData();
+        if (renewed.getAccessToken() == null) {
+            throw new IllegalStateException("WeChat answered the refresh without an access token");
+        }
+        return renewed;
+    }
+
+    /**
+     * Counts of a single sweep.
+     */
+    public static class SweepResult {
+        private int scanned;
+        private int renewed;
+        private int dead;
+        private int failed;
+
+        public int getScanned() {
+            return scanned;
+        }
+
+        public int getRenewed() {
+            return renewed;
+        }
+
+        public int getDead() {
+            return dead;
+        }
+
+        /**
+         * @return the number of connections whose renewal failed for a transient reason and will be retried by the next sweep
+         */
+        public int getFailed() {
+            return failed;
+        }
+
+        @Override
+        public String toString() {
+            return "scanned=" + scanned + " renewed=" + renewed + " dead=" + dead + " failed=" + failed;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.ExpiredAuthorizationException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.wechat.api.WeChat;
+import org.springframework.social.wechat.support.SimpleRateLimiter;
+import org.springframework.util.Assert;
+
+/**
+ * Checks large sets of stored WeChat connections concurrently, e.g. for a periodic health sweep.
+ * Each check is a single sns/auth call through {@link Connection#test()}; the calls run on the given executor,
+ * whose pool size bounds the concurrency, and are started no faster than the given rate.
+ * Checks are submitted in batches, so a large set does not queue one task per connection up front.
+ * @author Sam Song
+ */
+public class WeChatConnectionValidator {
+    private static final Log logger = LogFactory.getLog(WeChatConnectionValidator.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final ExecutorService executorService;
+    private final SimpleRateLimiter rateLimiter;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * @param executorService the executor the checks run on
+     * @param permitsPerSecond the maximum number of checks started per second
+     */
+    public WeChatConnectionValidator(ExecutorService executorService, double permitsPerSecond) {
+        Assert.notNull(executorService, "The executorService property cannot be null");
+        this.executorService = executorService;
+        this.rateLimiter = new SimpleRateLimiter(permitsPerSecond);
+    }
+
+    /**
+     * Validates the given connections and waits for all checks to finish.
+     * Connections whose check failed for a reason other than an invalid or expired token, e.g. a network error
+     * or a transient WeChat errcode such as system busy or quota reached, are left out of the result so they can be retried.
+     * @param connections the connections to validate
+     * @return whether each connection is still valid, keyed by connection key
+     * @throws InterruptedException if interrupted while waiting for the checks; checks not yet finished are cancelled
+     */
+    public Map<ConnectionKey, Boolean> validate(Collection<? extends Connection<WeChat>> connections) throws InterruptedException {
+        Map<ConnectionKey, Boolean> results = new LinkedHashMap<>(connections.size() * 4 / 3 + 1);
+        List<Connection<WeChat>> batch = new ArrayList<>(Math.min(batchSize, connections.size()));
+        for (Connection<WeChat> connection : connections) {
+            batch.add(connection);
+            if (batch.size() == batchSize) {
+                validateBatch(batch, results);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            validateBatch(batch, results);
+        }
+        return results;
+    }
+
+    /**
+     * Sets how many checks are submitted to the executor at a time; the next batch is submitted once the current one has finished.
+     * Defaults to {@value #DEFAULT_BATCH_SIZE}.
+     * @param batchSize the maximum number of outstanding checks
+     */
+    public void setBatchSize(int batchSize) {
+        Assert.isTrue(batchSize > 0, "The batchSize property must be positive");
+        this.batchSize = batchSize;
+    }
+
+    // internal helpers
+
+    private void validateBatch(List<Connection<WeChat>> batch, Map<ConnectionKey, Boolean> results) throws InterruptedException {
+        List<Future<Boolean>> futures = new ArrayList<>(batch.size());
+        for (final Connection<WeChat> connection : batch) {
+            futures.add(executorService.submit(() -> {
+                rateLimiter.acquire();
+                return check(connection);
+            }));
+        }
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Connection<WeChat> connection = batch.get(i);
+                try {
+                    results.put(connection.getKey(), futures.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.warn("Could not validate connection " + connection.getKey(), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            for (Future<Boolean> future : futures) {
+                future.cancel(true);
+            }
+            throw e;
+        }
+    }
+
+    private boolean check(Connection<WeChat> connection) {
+        if (connection.hasExpired()) {
+            return false;
+        }
+        try {
+            return connection.test();
+        } catch (ExpiredAuthorizationException e) {
+            return false;
+        }
+    }
+}
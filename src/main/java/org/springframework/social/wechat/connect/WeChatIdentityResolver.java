@@ -0,0 +1,232 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.wechat.api.WeChatAccessGrant;
+import org.springframework.social.wechat.api.WeChatUserProfile;
+import org.springframework.util.Assert;
+
+/**
+ * Resolves the openids a WeChat user has across apps (website login, official accounts, mini-programs) through their unionid.
+ * Lookups are served from an in-memory index that is read through from, and written through to, a {@link WeChatIdentityStore}.
+ * The index is fed by every access grant and user profile seen by a {@link WeChatConnectionFactory} the resolver is set on,
+ * so linking a user on a second app needs no extra API call.
+ * The index only caches the store: it holds at most the configured number of users and app users,
+ * dropping the least recently used ones, which are read from the store again on their next lookup.
+ * Both maps are access-ordered and guarded by a single lock, so every lookup briefly serializes on it;
+ * the lock is never held during store calls, which keeps it short enough for sign-in rates, but not for hot-path lookups
+ * on many threads, which should rather go to the store or a dedicated concurrent cache.
+ * Identities observed during sign-in are recorded on a best-effort basis: store failures are logged and never fail the sign-in.
+ * @author Sam Song
+ */
+public class WeChatIdentityResolver {
+    private static final Log logger = LogFactory.getLog(WeChatIdentityResolver.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final WeChatIdentityStore store;
+    // unionid -> immutable map of openids keyed by appId, and (appId, openid) -> unionid; both guarded by this resolver
+    private final Map<String, Map<String, String>> openIdsByUnionId;
+    private final Map<AppUser, String> unionIdsByAppUser;
+
+    public WeChatIdentityResolver(WeChatIdentityStore store) {
+        this(store, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param store the store the index reads from and writes to
+     * @param maxEntries the maximum number of unionids, and of app users, kept in memory
+     */
+    public WeChatIdentityResolver(WeChatIdentityStore store, int maxEntries) {
+        Assert.notNull(store, "The store property cannot be null");
+        Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+        this.store = store;
+        this.openIdsByUnionId = new LruMap<>(maxEntries);
+        this.unionIdsByAppUser = new LruMap<>(maxEntries);
+    }
+
+    /**
+     * @param unionId the unionid of the user
+     * @param appId the WeChat app id
+     * @return the openid of the user in the given app, or null if unknown
+     */
+    public String resolveOpenId(String unionId, String appId) {
+        return getOpenIds(unionId).get(appId);
+    }
+
+    /**
+     * @param unionId the unionid of the user
+     * @return the known openids of the user keyed by appId
+     */
+    public Map<String, String> getOpenIds(String unionId) {
+        Map<String, String> openIds;
+        synchronized (this) {
+            openIds = openIdsByUnionId.get(unionId);
+        }
+        return openIds != null ? openIds : load(unionId);
+    }
+
+    /**
+     * @param appId the WeChat app id
+     * @param openId the openid of the user in that app
+     * @return the unionid of the user, or null if unknown
+     */
+    public String resolveUnionId(String appId, String openId) {
+        AppUser appUser = new AppUser(appId, openId);
+        String unionId;
+        synchronized (this) {
+            unionId = unionIdsByAppUser.get(appUser);
+        }
+        if (unionId == null) {
+            unionId = store.findUnionId(appId, openId);
+            if (unionId != null) {
+                synchronized (this) {
+                    unionIdsByAppUser.putIfAbsent(appUser, unionId);
+                }
+            }
+        }
+        return unionId;
+    }
+
+    /**
+     * Records the identity carried by an access grant; store failures are logged, not thrown.
+     * @param appId the WeChat app id
+     * @param accessGrant the access grant
+     */
+    public void record(String appId, WeChatAccessGrant accessGrant) {
+        recordQuietly(appId, accessGrant.getOpenId(), accessGrant.getUnionId());
+    }
+
+    /**
+     * Records the identity of a fetched user profile; store failures are logged, not thrown.
+     * @param appId the WeChat app id
+     * @param profile the user profile
+     */
+    public void record(String appId, WeChatUserProfile profile) {
+        recordQuietly(appId, profile.getOpenId(), profile.getUnionId());
+    }
+
+    /**
+     * Records an identity observed in an app; only a new or changed identity is written to the store.
+     * The store is written first, so an identity the store failed to save is not considered known and is saved again next time.
+     * Identities without a unionid, e.g. from apps not bound to an Open Platform account, are ignored.
+     * @param appId the WeChat app id
+     * @param openId the openid of the user in that app
+     * @param unionId the unionid of the user
+     */
+    public void record(String appId, String openId, String unionId) {
+        if (appId == null || openId == null || unionId == null) {
+            return;
+        }
+        if (openId.equals(getOpenIds(unionId).get(appId))) {
+            return;
+        }
+        store.saveIdentity(unionId, appId, openId);
+        synchronized (this) {
+            Map<String, String> cached = openIdsByUnionId.get(unionId);
+            if (cached != null) {
+                Map<String, String> openIds = new HashMap<>(cached);
+                String previousOpenId = openIds.put(appId, openId);
+                openIdsByUnionId.put(unionId, Collections.unmodifiableMap(openIds));
+                if (previousOpenId != null && !previousOpenId.equals(openId)) {
+                    unionIdsByAppUser.remove(new AppUser(appId, previousOpenId));
+                }
+            }
+            // if the user was evicted meanwhile, the next lookup reloads all their apps from the store rather than this one only
+            unionIdsByAppUser.put(new AppUser(appId, openId), unionId);
+        }
+    }
+
+    /**
+     * Drops everything cached for the given user, so that the next lookup reads from the store again.
+     * @param unionId the unionid of the user
+     */
+    public synchronized void evict(String unionId) {
+        Map<String, String> openIds = openIdsByUnionId.remove(unionId);
+        if (openIds != null) {
+            for (Map.Entry<String, String> openId : openIds.entrySet()) {
+                unionIdsByAppUser.remove(new AppUser(openId.getKey(), openId.getValue()));
+            }
+        }
+    }
+
+    /**
+     * @return the number of unionids currently cached
+     */
+    public synchronized int size() {
+        return openIdsByUnionId.size();
+    }
+
+    // internal helpers
+
+    private void recordQuietly(String appId, String openId, String unionId) {
+        try {
+            record(appId, openId, unionId);
+        } catch (RuntimeException e) {
+            logger.warn("Could not record WeChat identity of " + openId + " in app " + appId, e);
+        }
+    }
+
+    private Map<String, String> load(String unionId) {
+        Map<String, String> stored = store.findOpenIds(unionId);
+        if (stored == null || stored.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> openIds = Collections.unmodifiableMap(new HashMap<>(stored));
+        synchronized (this) {
+            Map<String, String> existing = openIdsByUnionId.get(unionId);
+            if (existing != null) {
+                return existing;
+            }
+            openIdsByUnionId.put(unionId, openIds);
+            for (Map.Entry<String, String> openId : openIds.entrySet()) {
+                unionIdsByAppUser.putIfAbsent(new AppUser(openId.getKey(), openId.getValue()), unionId);
+            }
+        }
+        return openIds;
+    }
+
+    private static final class LruMap<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxEntries;
+
+        LruMap(int maxEntries) {
+            super(Math.min(maxEntries, 1024), 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > maxEntries;
+        }
+    }
+
+    private static final class AppUser {
+        private final String appId;
+        private final String openId;
+
+        AppUser(String appId, String openId) {
+            this.appId = appId;
+            this.openId = openId;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * appId.hashCode() + openId.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof AppUser)) return false;
+            AppUser other = (AppUser) obj;
+            return appId.equals(other.appId) && openId.equals(other.openId);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.Map;
+
+/**
+ * Persistent store behind {@link WeChatIdentityResolver}, holding which openid a WeChat user (identified by unionid) has in each app.
+ * @author Sam Song
+ */
+public interface WeChatIdentityStore {
+    /**
+     * @param unionId the unionid of the user
+     * @return the openids of the user keyed by appId, empty if none are known
+     */
+    Map<String, String> findOpenIds(String unionId);
+
+    /**
+     * @param appId the WeChat app id
+     * @param openId the openid of the user in that app
+     * @return the unionid of the user, or null if unknown
+     */
+    String findUnionId(String appId, String openId);
+
+    /**
+     * Records that the user with the given unionid has the given openid in the given app, replacing any previous openid for that app.
+     * @param unionId the unionid of the user
+     * @param appId the WeChat app id
+     * @param openId the openid of the user in that app
+     */
+    void saveIdentity(String unionId, String appId, String openId);
+}
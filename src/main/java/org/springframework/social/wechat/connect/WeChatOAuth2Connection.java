@@ -1,11 +1,9 @@
 package org.springframework.social.wechat.connect;
 
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.Proxy;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.TimeUnit;
 
-import org.springframework.core.GenericTypeResolver;
 import org.springframework.social.ExpiredAuthorizationException;
 import org.springframework.social.ServiceProvider;
 import org.springframework.social.connect.ApiAdapter;
@@ -15,8 +13,12 @@ import org.springframework.social.connect.support.AbstractConnection;
 import org.springframework.social.connect.support.OAuth2ConnectionFactory;
 import org.springframework.social.oauth2.AccessGrant;
 import org.springframework.social.oauth2.OAuth2ServiceProvider;
+import org.springframework.social.wechat.api.TemplateMessageOperations;
+import org.springframework.social.wechat.api.UserOperations;
 import org.springframework.social.wechat.api.WeChat;
 import org.springframework.social.wechat.api.WeChatAccessGrant;
+import org.springframework.social.wechat.support.Clock;
+import org.springframework.util.Assert;
 
 /**
  * An OAuth2-based Connection implementation.
@@ -29,6 +31,13 @@ public class WeChatOAuth2Connection extends AbstractConnection<WeChat> {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * How long a WeChat refresh token stays valid after it has been issued.
+     */
+    public static final long REFRESH_TOKEN_VALIDITY_MILLIS = TimeUnit.DAYS.toMillis(30);
+
+    private static final long MAX_REMAINING_NANOS = Long.MAX_VALUE / 4;
+
     private transient final OAuth2ServiceProvider<WeChat> serviceProvider;
 
     private String accessToken;
@@ -37,9 +46,20 @@ public class WeChatOAuth2Connection extends AbstractConnection<WeChat> {
 
     private Long expireTime;
 
-    private transient WeChat api;
+    private Long refreshTokenIssueTime;
+
+    private Long refreshTokenExpireTime;
+
+    private long expirySkewMillis;
+
+    private transient volatile Clock clock = Clock.SYSTEM;
+
+    // monotonic time at which the access token is considered expired, or null if it never expires
+    private transient volatile Long expiryDeadlineNanos;
 
-    private transient WeChat apiProxy;
+    private transient volatile WeChat api;
+
+    private transient WeChat apiDelegate;
 
     /**
      * Creates a new {@link WeChatOAuth2Connection} from a access grant response.
@@ -58,14 +78,17 @@ public class WeChatOAuth2Connection extends AbstractConnection<WeChat> {
         super(apiAdapter);
         this.serviceProvider = serviceProvider;
         initAccessTokens(accessToken, refreshToken, expireTime);
+        initRefreshTokenLifetime(clock.currentTimeMillis());
         initApi(providerUserId);
-        initApiProxy();
+        initExpiry();
+        initApiDelegate();
         initKey(providerId, providerUserId);
     }
 
     /**
      * Creates a new {@link WeChatOAuth2Connection} from the data provided.
      * Designed to be called when re-constituting an existing {@link Connection} from {@link ConnectionData}.
+     * The refresh token lifetime is only known if the data is a {@link WeChatConnectionData}.
      * @param data the data holding the state of this connection
      * @param serviceProvider the OAuth2-based ServiceProvider
      * @param apiAdapter the ApiAdapter for the ServiceProvider
@@ -74,29 +97,64 @@ public class WeChatOAuth2Connection extends AbstractConnection<WeChat> {
         super(data, apiAdapter);
         this.serviceProvider = serviceProvider;
         initAccessTokens(data.getAccessToken(), data.getRefreshToken(), data.getExpireTime());
+        if (data instanceof WeChatConnectionData) {
+            this.refreshTokenIssueTime = ((WeChatConnectionData) data).getRefreshTokenIssueTime();
+            this.refreshTokenExpireTime = ((WeChatConnectionData) data).getRefreshTokenExpireTime();
+        }
         initApi(getKey().getProviderUserId());
-        initApiProxy();
+        initExpiry();
+        initApiDelegate();
     }
 
-    // implementing Connection
+    /**
+     * Makes the access token count as expired the given time before WeChat actually expires it,
+     * so that a call started just before expiry does not fail half-way and refreshing has some slack.
+     * @param expirySkewMillis the skew in milliseconds, 0 by default
+     */
+    public void setExpirySkew(long expirySkewMillis) {
+        synchronized (getMonitor()) {
+            this.expirySkewMillis = expirySkewMillis;
+            initExpiry();
+        }
+    }
 
-    public boolean hasExpired() {
+    /**
+     * Sets the clock expiry is checked against, e.g. a fake clock in tests.
+     * @param clock the clock, {@link Clock#SYSTEM} by default
+     */
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "The clock property cannot be null");
         synchronized (getMonitor()) {
-            return expireTime != null && System.currentTimeMillis() >= expireTime;
+            this.clock = clock;
+            initExpiry();
         }
     }
 
+    // implementing Connection
+
+    // lock-free, as it is checked on every API call; the deadline is monotonic, so adjusting the system clock does not move it
+    public boolean hasExpired() {
+        Long deadline = expiryDeadlineNanos;
+        return deadline != null && clock.nanoTime() - deadline >= 0;
+    }
+
     public void refresh() {
         synchronized (getMonitor()) {
+            String previousRefreshToken = refreshToken;
             WeChatAccessGrant accessGrant = (WeChatAccessGrant) serviceProvider.getOAuthOperations().refreshAccess(refreshToken, null);
             initAccessTokens(accessGrant.getAccessToken(), accessGrant.getRefreshToken(), accessGrant.getExpireTime());
+            if (refreshToken != null && !refreshToken.equals(previousRefreshToken)) {
+                initRefreshTokenLifetime(clock.currentTimeMillis());
+            }
             initApi(accessGrant.getOpenId());
+            // published last, so that a caller seeing the new deadline also sees the api bound to the new token
+            initExpiry();
         }
     }
 
     public WeChat getApi() {
-        if (apiProxy != null) {
-            return apiProxy;
+        if (apiDelegate != null) {
+            return apiDelegate;
         } else {
             synchronized (getMonitor()) {
                 return api;
@@ -106,7 +164,26 @@ public class WeChatOAuth2Connection extends AbstractConnection<WeChat> {
 
     public ConnectionData createData() {
         synchronized (getMonitor()) {
-            return new ConnectionData(getKey().getProviderId(), getKey().getProviderUserId(), getDisplayName(), getProfileUrl(), getImageUrl(), accessToken, null, refreshToken, expireTime);
+            return new WeChatConnectionData(getKey().getProviderId(), getKey().getProviderUserId(), getDisplayName(), getProfileUrl(), getImageUrl(),
+                    accessToken, null, refreshToken, expireTime, refreshTokenIssueTime, refreshTokenExpireTime);
+        }
+    }
+
+    /**
+     * @return the time the refresh token expires, in milliseconds since the epoch, or null if unknown
+     */
+    public Long getRefreshTokenExpireTime() {
+        synchronized (getMonitor()) {
+            return refreshTokenExpireTime;
+        }
+    }
+
+    /**
+     * @return true if the refresh token is known to have expired, meaning the user has to authorize again
+     */
+    public boolean hasRefreshTokenExpired() {
+        synchronized (getMonitor()) {
+            return refreshTokenExpireTime != null && clock.currentTimeMillis() >= refreshTokenExpireTime;
         }
     }
 
@@ -118,31 +195,72 @@ public class WeChatOAuth2Connection extends AbstractConnection<WeChat> {
         this.expireTime = expireTime;
     }
 
+    private void initRefreshTokenLifetime(long issueTime) {
+        if (refreshToken != null) {
+            this.refreshTokenIssueTime = issueTime;
+            this.refreshTokenExpireTime = issueTime + REFRESH_TOKEN_VALIDITY_MILLIS;
+        } else {
+            this.refreshTokenIssueTime = null;
+            this.refreshTokenExpireTime = null;
+        }
+    }
+
     private void initApi(String providerUserId) {
-        api = serviceProvider.getApi(accessToken);
+        WeChat api = serviceProvider.getApi(accessToken);
         if (providerUserId != null) {
             api.setOpenId(providerUserId);
         }
+        this.api = api;
     }
 
-    @SuppressWarnings("unchecked")
-    private void initApiProxy() {
-        apiProxy = (WeChat) Proxy.newProxyInstance(WeChat.class.getClassLoader(), new Class<?>[] { WeChat.class }, new ApiInvocationHandler());
+    private void initExpiry() {
+        if (expireTime == null) {
+            expiryDeadlineNanos = null;
+        } else {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(expireTime - expirySkewMillis - clock.currentTimeMillis());
+            // bounded so that the deadline arithmetic cannot overflow
+            remainingNanos = Math.max(-MAX_REMAINING_NANOS, Math.min(MAX_REMAINING_NANOS, remainingNanos));
+            expiryDeadlineNanos = clock.nanoTime() + remainingNanos;
+        }
     }
 
-    private class ApiInvocationHandler implements InvocationHandler {
+    private void initApiDelegate() {
+        apiDelegate = new ExpiryCheckingApi();
+    }
 
-        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
-            synchronized (getMonitor()) {
-                if (hasExpired()) {
-                    throw new ExpiredAuthorizationException(getKey().getProviderId());
-                }
-                try {
-                    return method.invoke(WeChatOAuth2Connection.this.api, args);
-                } catch (InvocationTargetException e) {
-                    throw e.getTargetException();
-                }
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        clock = Clock.SYSTEM;
+        initExpiry();
+    }
+
+    /**
+     * Checks expiry before every call and forwards it to the api bound to the current access token.
+     * Hand-written rather than a dynamic proxy so that calls are plain virtual calls; it has to implement every method of {@link WeChat}.
+     */
+    private class ExpiryCheckingApi implements WeChat {
+
+        public UserOperations userOperations() {
+            return currentApi().userOperations();
+        }
+
+        public TemplateMessageOperations templateMessageOperations() {
+            return currentApi().templateMessageOperations();
+        }
+
+        public void setOpenId(String openId) {
+            currentApi().setOpenId(openId);
+        }
+
+        public boolean isAuthorized() {
+            return currentApi().isAuthorized();
+        }
+
+        private WeChat currentApi() {
+            if (hasExpired()) {
+                throw new ExpiredAuthorizationException(getKey().getProviderId());
             }
+            return api;
         }
     }
 
@@ -1,29 +1,83 @@
 package org.springframework.social.wechat.connect;
 
+import org.springframework.http.client.ClientHttpRequestFactory;
 import org.springframework.social.oauth2.AbstractOAuth2ServiceProvider;
 import org.springframework.social.oauth2.OAuth2Operations;
 import org.springframework.social.wechat.WeChatOAuth2Template;
 import org.springframework.social.wechat.api.WeChat;
 import org.springframework.social.wechat.api.impl.WeChatTemplate;
+import org.springframework.social.wechat.trace.WeChatTracer;
 
 public class WeChatServiceProvider extends AbstractOAuth2ServiceProvider<WeChat> {
-    public static final String AUTHORIZE_URL = "https://open.weixin.qq.com/connect/qrconnect";
-    public static final String ACCESS_TOKEN_URL = "https://api.weixin.qq.com/sns/oauth2/access_token";
-    public static final String REFRESH_TOKEN_URL = "https://api.weixin.qq.com/sns/oauth2/refresh_token";
+    public static final String OPEN_BASE_URL = "https://open.weixin.qq.com";
+    public static final String API_BASE_URL = WeChatTemplate.DEFAULT_API_BASE_URL;
+    public static final String AUTHORIZE_URL = OPEN_BASE_URL + "/connect/qrconnect";
+    public static final String ACCESS_TOKEN_URL = API_BASE_URL + "/sns/oauth2/access_token";
+    public static final String REFRESH_TOKEN_URL = API_BASE_URL + "/sns/oauth2/refresh_token";
+
+    private final String appId;
+    private final String apiBaseUrl;
+    private final ClientHttpRequestFactory requestFactory;
+    private WeChatTracer tracer;
 
     public WeChatServiceProvider(String appId, String appSecret) {
-        super(createOAuth2Template(appId, appSecret));
+        this(appId, appSecret, null);
+    }
+
+    /**
+     * Creates a provider whose OAuth and API calls all go through the given request factory.
+     * @param appId the WeChat app id
+     * @param appSecret the WeChat app secret
+     * @param requestFactory the shared request factory, or null to let each template create its own
+     */
+    public WeChatServiceProvider(String appId, String appSecret, ClientHttpRequestFactory requestFactory) {
+        this(appId, appSecret, OPEN_BASE_URL, API_BASE_URL, requestFactory);
+    }
+
+    /**
+     * Creates a provider that talks to WeChat at the given base URLs, e.g. a local simulator for load tests.
+     * @param appId the WeChat app id
+     * @param appSecret the WeChat app secret
+     * @param openBaseUrl the base URL of the authorization pages, without trailing slash
+     * @param apiBaseUrl the base URL of the token and API endpoints, without trailing slash
+     * @param requestFactory the shared request factory, or null to let each template create its own
+     */
+    public WeChatServiceProvider(String appId, String appSecret, String openBaseUrl, String apiBaseUrl, ClientHttpRequestFactory requestFactory) {
+        super(createOAuth2Template(appId, appSecret, openBaseUrl, apiBaseUrl, requestFactory));
+        this.appId = appId;
+        this.apiBaseUrl = apiBaseUrl;
+        this.requestFactory = requestFactory;
+    }
+
+    /**
+     * Records spans for the OAuth calls and for the API calls of every binding created from now on.
+     * @param tracer the tracer
+     */
+    public void setTracer(WeChatTracer tracer) {
+        this.tracer = tracer;
+        ((WeChatOAuth2Template) getOAuthOperations()).setTracer(tracer);
     }
 
-    private static OAuth2Operations createOAuth2Template(String appId, String appSecret) {
+    private static OAuth2Operations createOAuth2Template(String appId, String appSecret, String openBaseUrl, String apiBaseUrl,
+                                                         ClientHttpRequestFactory requestFactory) {
         WeChatOAuth2Template oAuth2Template = new WeChatOAuth2Template(appId, appSecret,
-                AUTHORIZE_URL, ACCESS_TOKEN_URL, REFRESH_TOKEN_URL);
+                openBaseUrl + "/connect/qrconnect", apiBaseUrl + "/sns/oauth2/access_token", apiBaseUrl + "/sns/oauth2/refresh_token");
         oAuth2Template.setUseParametersForClientAuthentication(true);
+        if (requestFactory != null) {
+            oAuth2Template.setRequestFactory(requestFactory);
+        }
         return oAuth2Template;
     }
 
     @Override
     public WeChat getApi(String accessToken) {
-        return new WeChatTemplate(accessToken);
+        WeChatTemplate weChatTemplate = new WeChatTemplate(accessToken, apiBaseUrl);
+        if (requestFactory != null) {
+            weChatTemplate.setRequestFactory(requestFactory);
+        }
+        if (tracer != null) {
+            weChatTemplate.setTracer(tracer, appId);
+        }
+        return weChatTemplate;
     }
 }
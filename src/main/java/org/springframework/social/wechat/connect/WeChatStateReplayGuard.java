@@ -0,0 +1,95 @@
+package org.springframework.social.wechat.connect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.springframework.social.wechat.support.Clock;
+import org.springframework.util.Assert;
+
+/**
+ * Remembers the state tokens already presented to this node, so that {@link WeChatStateTokenService} accepts each of them
+ * with one authorization code only.
+ * A callback repeated with the same state and code, e.g. a double click or a browser retry, is let through,
+ * so that an {@link org.springframework.social.wechat.AuthorizationCodeExchangeCache} can answer it with the grant of the first exchange;
+ * the same state with another code is rejected.
+ * Memory is strictly bounded: tokens are forgotten when they expire, and beyond the configured number of entries
+ * the oldest ones are dropped first, which only re-opens replay for tokens that are about to expire anyway.
+ * The guard is local to a node; since an authorization code can be exchanged only once, a replay on another node fails at the exchange.
+ * @author Sam Song
+ */
+public class WeChatStateReplayGuard {
+    public static final int DEFAULT_MAX_ENTRIES = 100000;
+
+    private final int maxEntries;
+    // token -> code and expire time, in insertion order; guarded by itself
+    private final LinkedHashMap<String, Use> usedTokens = new LinkedHashMap<>();
+    private Clock clock = Clock.SYSTEM;
+
+    public WeChatStateReplayGuard() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries the maximum number of tokens remembered
+     */
+    public WeChatStateReplayGuard(int maxEntries) {
+        Assert.isTrue(maxEntries > 0, "maxEntries must be positive");
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Sets the clock expiry is checked against; should be the clock of the {@link WeChatStateTokenService}.
+     * @param clock the clock, {@link Clock#SYSTEM} by default
+     */
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "The clock property cannot be null");
+        this.clock = clock;
+    }
+
+    /**
+     * Records the given token as used with the given code.
+     * @param token the state token
+     * @param code the authorization code delivered with the token
+     * @param expireTime the time the token expires, in milliseconds since the epoch
+     * @return true if the token had not been used before, or only with the same code
+     */
+    public boolean markUsed(String token, String code, long expireTime) {
+        long now = clock.currentTimeMillis();
+        synchronized (usedTokens) {
+            Use use = usedTokens.get(token);
+            if (use != null) {
+                return Objects.equals(use.code, code);
+            }
+            usedTokens.put(token, new Use(code, expireTime));
+            for (Iterator<Map.Entry<String, Use>> it = usedTokens.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<String, Use> eldest = it.next();
+                if (usedTokens.size() <= maxEntries && eldest.getValue().expireTime > now) {
+                    break;
+                }
+                it.remove();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of tokens currently remembered
+     */
+    public int size() {
+        synchronized (usedTokens) {
+            return usedTokens.size();
+        }
+    }
+
+    private static class Use {
+        private final String code;
+        private final long expireTime;
+
+        Use(String code, long expireTime) {
+            this.code = code;
+            this.expireTime = expireTime;
+        }
+    }
+}
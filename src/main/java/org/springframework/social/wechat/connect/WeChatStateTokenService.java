@@ -0,0 +1,194 @@
+package org.springframework.social.wechat.connect;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.social.wechat.support.Clock;
+import org.springframework.util.Assert;
+
+/**
+ * Creates and verifies the OAuth2 "state" parameter of the WeChat login flow without keeping anything in the HTTP session.
+ * A state token carries its issue time and a nonce, signed with HMAC-SHA256 under a key shared by all nodes,
+ * so any node can verify a callback for a redirect issued by any other node and login redirects need neither sticky sessions
+ * nor session replication.
+ * The nonce binds the token to the browser that started the login: it is also handed to that browser, e.g. in a cookie,
+ * and a callback only verifies if it presents the same nonce, so a token obtained by someone else is useless to them.
+ * Tokens are valid for a bounded time; an optional {@link WeChatStateReplayGuard} additionally rejects a token presented again
+ * with another code.
+ * @author Sam Song
+ */
+public class WeChatStateTokenService {
+    public static final long DEFAULT_VALIDITY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    // tolerated difference between the clocks of the node issuing a token and the node verifying it
+    private static final long MAX_CLOCK_DRIFT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int MIN_KEY_LENGTH = 32;
+    private static final int NONCE_LENGTH = 12;
+    private static final int SIGNATURE_LENGTH = 16;
+    // issue time (8 bytes), nonce, truncated signature
+    private static final int TOKEN_LENGTH = 8 + NONCE_LENGTH + SIGNATURE_LENGTH;
+
+    private final SecretKeySpec key;
+    private final long validityMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Mac> macs;
+    private WeChatStateReplayGuard replayGuard;
+    private Clock clock = Clock.SYSTEM;
+
+    public WeChatStateTokenService(byte[] key) {
+        this(key, DEFAULT_VALIDITY_MILLIS);
+    }
+
+    /**
+     * @param key the HMAC key, at least 32 bytes, the same on all nodes
+     * @param validityMillis how long a token stays valid after it has been created, in milliseconds
+     */
+    public WeChatStateTokenService(byte[] key, long validityMillis) {
+        Assert.notNull(key, "The key property cannot be null");
+        Assert.isTrue(key.length >= MIN_KEY_LENGTH, "key must be at least " + MIN_KEY_LENGTH + " bytes long");
+        Assert.isTrue(validityMillis > 0, "validityMillis must be positive");
+        this.key = new SecretKeySpec(key.clone(), ALGORITHM);
+        this.validityMillis = validityMillis;
+        this.macs = ThreadLocal.withInitial(this::createMac);
+    }
+
+    /**
+     * Makes every token usable with one authorization code only, within the memory bound of the given guard.
+     * Repeated callbacks with the same token and code still pass, to be deduplicated by the authorization code cache.
+     * @param replayGuard the replay guard, or null to accept a valid token any number of times until it expires
+     */
+    public void setReplayGuard(WeChatStateReplayGuard replayGuard) {
+        this.replayGuard = replayGuard;
+    }
+
+    /**
+     * Sets the clock tokens are timestamped and checked with, e.g. a fake clock in tests.
+     * @param clock the clock, {@link Clock#SYSTEM} by default
+     */
+    public void setClock(Clock clock) {
+        Assert.notNull(clock, "The clock property cannot be null");
+        this.clock = clock;
+    }
+
+    /**
+     * @return the validity of a token, in milliseconds, e.g. to set the lifetime of the cookie holding its nonce
+     */
+    public long getValidityMillis() {
+        return validityMillis;
+    }
+
+    /**
+     * @return a new random nonce, URL-safe and 16 characters long
+     */
+    public String createNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        return encode(nonce);
+    }
+
+    /**
+     * @param nonce the nonce
+     * @return true if the given value has the form of a nonce created by {@link #createNonce()}
+     */
+    public boolean isNonce(String nonce) {
+        return decode(nonce, NONCE_LENGTH) != null;
+    }
+
+    /**
+     * Creates a state token bound to the given nonce, which must be kept by the browser the login is started from.
+     * @param nonce a nonce created by {@link #createNonce()}
+     * @return a new state token, URL-safe and 48 characters long
+     */
+    public String createState(String nonce) {
+        byte[] nonceBytes = decode(nonce, NONCE_LENGTH);
+        Assert.notNull(nonceBytes, "nonce must be created by createNonce()");
+        byte[] token = new byte[TOKEN_LENGTH];
+        ByteBuffer.wrap(token).putLong(clock.currentTimeMillis());
+        System.arraycopy(nonceBytes, 0, token, 8, NONCE_LENGTH);
+        System.arraycopy(sign(token), 0, token, TOKEN_LENGTH - SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+        return encode(token);
+    }
+
+    /**
+     * Creates a state token bound to a fresh nonce, for flows that bind the state to the user by other means,
+     * e.g. by keeping it in the HTTP session.
+     * @return a new state token
+     */
+    public String createState() {
+        return createState(createNonce());
+    }
+
+    /**
+     * Checks that the given state was created by a node sharing this key for the given nonce, has not expired
+     * and, if a replay guard is set, has not been presented before with another code.
+     * @param state the state parameter of the callback, may be null
+     * @param nonce the nonce kept by the browser presenting the callback, may be null
+     * @param code the authorization code of the callback
+     * @return true if the state is valid
+     */
+    public boolean verify(String state, String nonce, String code) {
+        byte[] token = decode(state, TOKEN_LENGTH);
+        byte[] nonceBytes = decode(nonce, NONCE_LENGTH);
+        if (token == null || nonceBytes == null) {
+            return false;
+        }
+        byte[] expected = Arrays.copyOf(sign(token), SIGNATURE_LENGTH);
+        byte[] actual = Arrays.copyOfRange(token, TOKEN_LENGTH - SIGNATURE_LENGTH, TOKEN_LENGTH);
+        if (!MessageDigest.isEqual(expected, actual) || !MessageDigest.isEqual(nonceBytes, Arrays.copyOfRange(token, 8, 8 + NONCE_LENGTH))) {
+            return false;
+        }
+        long issueTime = ByteBuffer.wrap(token).getLong();
+        long now = clock.currentTimeMillis();
+        if (issueTime - now > MAX_CLOCK_DRIFT_MILLIS || now - issueTime >= validityMillis) {
+            return false;
+        }
+        WeChatStateReplayGuard replayGuard = this.replayGuard;
+        return replayGuard == null || replayGuard.markUsed(state, code, issueTime + validityMillis);
+    }
+
+    // internal helpers
+
+    // signs the issue time and nonce of the given token
+    private byte[] sign(byte[] token) {
+        Mac mac = macs.get();
+        mac.update(token, 0, TOKEN_LENGTH - SIGNATURE_LENGTH);
+        return mac.doFinal();
+    }
+
+    private Mac createMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // should not happen, HmacSHA256 is always supported and the key is not empty
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encode(byte[] bytes) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    // returns null unless the value is the unpadded base64url encoding of exactly the given number of bytes
+    private static byte[] decode(String value, int length) {
+        if (value == null || value.length() != (length * 4 + 2) / 3) {
+            return null;
+        }
+        try {
+            byte[] bytes = Base64.getUrlDecoder().decode(value);
+            return bytes.length == length ? bytes : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.springframework.social.wechat.message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.social.support.ClientHttpRequestFactorySelector;
+import org.springframework.social.wechat.api.WeChatApiException;
+import org.springframework.social.wechat.api.impl.WeChatTemplate;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
+
+/**
+ * Caches the app access token of an official account, obtained through the client_credential grant of cgi-bin/token.
+ * WeChat limits how often that token may be fetched and invalidates the previous one on every fetch,
+ * so all senders of an app should share one cache. The token is renewed shortly before it expires,
+ * or earlier when a caller reports it as rejected through {@link #invalidate(String)}.
+ * @author Sam Song
+ */
+public class AppAccessTokenCache {
+    private static final long EARLY_RENEWAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private final String appId;
+    private final String appSecret;
+    private final String apiBaseUrl;
+    private final RestTemplate restTemplate;
+    private volatile Token token;
+
+    public AppAccessTokenCache(String appId, String appSecret) {
+        this(appId, appSecret, WeChatTemplate.DEFAULT_API_BASE_URL, ClientHttpRequestFactorySelector.getRequestFactory());
+    }
+
+    public AppAccessTokenCache(String appId, String appSecret, String apiBaseUrl, ClientHttpRequestFactory requestFactory) {
+        Assert.notNull(requestFactory, "The requestFactory property cannot be null");
+        this.appId = appId;
+        this.appSecret = appSecret;
+        this.apiBaseUrl = apiBaseUrl;
+        this.restTemplate = createRestTemplate(requestFactory);
+    }
+
+    public String getAppId() {
+        return appId;
+    }
+
+    public String getApiBaseUrl() {
+        return apiBaseUrl;
+    }
+
+    /**
+     * @return a valid app access token, fetching a new one if needed
+     * @throws WeChatApiException if WeChat refuses to issue a token
+     */
+    public String getAccessToken() {
+        Token current = token;
+        if (current == null || current.needsRenewal()) {
+            synchronized (this) {
+                current = token;
+                if (current == null || current.needsRenewal()) {
+                    current = fetchToken();
+                    token = current;
+                }
+            }
+        }
+        return current.value;
+    }
+
+    /**
+     * Drops the given token if it is still the cached one, so the next call fetches a fresh token.
+     * @param accessToken the token WeChat rejected
+     */
+    public synchronized void invalidate(String accessToken) {
+        if (token != null && token.value.equals(accessToken)) {
+            token = null;
+        }
+    }
+
+    // internal helpers
+
+    private Token fetchToken() {
+        UriComponentsBuilder builder = UriComponentsBuilder.fromUriString(apiBaseUrl + "/cgi-bin/token")
+                .queryParam("grant_type", "client_credential")
+                .queryParam("appid", appId)
+                .queryParam("secret", appSecret);
+        Map<?, ?> result = restTemplate.getForObject(builder.build().encode().toUri(), Map.class);
+        Object accessToken = result != null ? result.get("access_token") : null;
+        if (accessToken == null) {
+            throw new WeChatApiException(getErrorCode(result), result != null ? String.valueOf(result.get("errmsg")) : "Empty response");
+        }
+        long expiresIn = Long.parseLong(String.valueOf(result.get("expires_in")));
+        return new Token(accessToken.toString(), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresIn));
+    }
+
+    // a response without a token but also without a parsable errcode is reported as system busy
+    private static int getErrorCode(Map<?, ?> result) {
+        try {
+            return Integer.parseInt(String.valueOf(result != null ? result.get("errcode") : null));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static RestTemplate createRestTemplate(ClientHttpRequestFactory requestFactory) {
+        MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
+        List<MediaType> mediaTypes = new ArrayList<>(converter.getSupportedMediaTypes());
+        mediaTypes.add(MediaType.TEXT_PLAIN);
+        converter.setSupportedMediaTypes(mediaTypes);
+        List<HttpMessageConverter<?>> converters = new ArrayList<>(1);
+        converters.add(converter);
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        restTemplate.setMessageConverters(converters);
+        return restTemplate;
+    }
+
+    private static class Token {
+        private final String value;
+        private final long expireTime;
+
+        Token(String value, long expireTime) {
+            this.value = value;
+            this.expireTime = expireTime;
+        }
+
+        boolean needsRenewal() {
+            return System.currentTimeMillis() >= expireTime - EARLY_RENEWAL_MILLIS;
+        }
+    }
+}
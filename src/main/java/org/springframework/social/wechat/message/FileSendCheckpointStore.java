@@ -0,0 +1,46 @@
+package org.springframework.social.wechat.message;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * {@link SendCheckpointStore} keeping one small file per job in a directory.
+ * Checkpoints are written to a temporary file and atomically moved into place, so a crash never leaves a torn checkpoint.
+ * @author Sam Song
+ */
+public class FileSendCheckpointStore implements SendCheckpointStore {
+    private final Path directory;
+
+    public FileSendCheckpointStore(Path directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public long load(String jobId) {
+        Path file = directory.resolve(jobId + ".checkpoint");
+        try {
+            if (!Files.exists(file)) {
+                return 0;
+            }
+            return Long.parseLong(new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void save(String jobId, long position) {
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, jobId, ".tmp");
+            Files.write(temp, Long.toString(position).getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, directory.resolve(jobId + ".checkpoint"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
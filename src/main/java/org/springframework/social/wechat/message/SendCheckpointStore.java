@@ -0,0 +1,19 @@
+package org.springframework.social.wechat.message;
+
+/**
+ * Persists how far a {@link TemplateMessageSendEngine} job has progressed, so that a restarted job resumes instead of resending.
+ * @author Sam Song
+ */
+public interface SendCheckpointStore {
+    /**
+     * @param jobId the id of the send job
+     * @return the number of leading recipients already handled, 0 for a new job
+     */
+    long load(String jobId);
+
+    /**
+     * @param jobId the id of the send job
+     * @param position the number of leading recipients handled so far
+     */
+    void save(String jobId, long position);
+}
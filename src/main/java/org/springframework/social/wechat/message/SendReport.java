@@ -0,0 +1,74 @@
+package org.springframework.social.wechat.message;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a {@link TemplateMessageSendEngine} job.
+ * @author Sam Song
+ */
+public class SendReport {
+    private final long skipped;
+    private final long sent;
+    private final long failed;
+    private final long elapsedNanos;
+    private final Map<String, Long> failuresByCode;
+    private final List<String> failedRecipients;
+
+    SendReport(long skipped, long sent, long failed, long elapsedNanos, Map<String, Long> failuresByCode, List<String> failedRecipients) {
+        this.skipped = skipped;
+        this.sent = sent;
+        this.failed = failed;
+        this.elapsedNanos = elapsedNanos;
+        this.failuresByCode = Collections.unmodifiableMap(failuresByCode);
+        this.failedRecipients = Collections.unmodifiableList(failedRecipients);
+    }
+
+    /**
+     * @return the number of recipients skipped because a previous run had already handled them
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    public long getSent() {
+        return sent;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * @return messages sent per second
+     */
+    public double getThroughput() {
+        return elapsedNanos > 0 ? sent * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos : 0;
+    }
+
+    /**
+     * @return the number of failed messages keyed by WeChat errcode, or by exception name for transport failures
+     */
+    public Map<String, Long> getFailuresByCode() {
+        return failuresByCode;
+    }
+
+    /**
+     * @return the openids of the recipients whose message definitively failed, in no particular order, e.g. to send them again later
+     */
+    public List<String> getFailedRecipients() {
+        return failedRecipients;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("skipped=%d sent=%d failed=%d elapsed=%dms throughput=%.1f/s failures=%s",
+                skipped, sent, failed, getElapsedMillis(), getThroughput(), failuresByCode);
+    }
+}
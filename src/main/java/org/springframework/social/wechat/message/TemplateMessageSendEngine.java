@@ -0,0 +1,359 @@
+package org.springframework.social.wechat.message;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.social.support.ClientHttpRequestFactorySelector;
+import org.springframework.social.wechat.api.TemplateMessage;
+import org.springframework.social.wechat.api.WeChat;
+import org.springframework.social.wechat.api.WeChatApiException;
+import org.springframework.social.wechat.api.impl.WeChatTemplate;
+import org.springframework.social.wechat.support.SimpleRateLimiter;
+import org.springframework.social.wechat.trace.TraceContext;
+import org.springframework.social.wechat.trace.WeChatTracer;
+import org.springframework.util.Assert;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+/**
+ * Sends template messages to large numbers of followers of an official account.
+ * Messages are read lazily from an iterator and sent by a fixed number of workers over one shared {@link ClientHttpRequestFactory},
+ * all using the app access token of one {@link AppAccessTokenCache}, at no more than the configured rate.
+ * Transient failures (system busy, rate limited, transport errors, 5xx responses) are retried with exponential backoff,
+ * and a rejected access token is renewed once for all workers.
+ * The job stops as a whole when no further message can be sent: the daily API quota is used up, no app access token can be fetched,
+ * or the checkpoint store fails.
+ * Progress is checkpointed to a {@link SendCheckpointStore} as the number of leading messages handled,
+ * so a restarted job skips what was already sent or definitively failed instead of resending it.
+ * @author Sam Song
+ */
+public class TemplateMessageSendEngine {
+    private static final Log logger = LogFactory.getLog(TemplateMessageSendEngine.class);
+
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final double DEFAULT_PERMITS_PER_SECOND = 200;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_RETRY_BACKOFF_MILLIS = 200;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    // system busy, api minute-quota reached
+    private static final int[] TRANSIENT_ERROR_CODES = {-1, 45011};
+    // invalid, malformed or expired access token
+    private static final int[] INVALID_TOKEN_ERROR_CODES = {40001, 40014, 42001};
+    // api daily quota reached
+    private static final int[] JOB_FATAL_ERROR_CODES = {45009};
+
+    private final AppAccessTokenCache tokenCache;
+    private final SendCheckpointStore checkpointStore;
+    private final ClientHttpRequestFactory requestFactory;
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private double permitsPerSecond = DEFAULT_PERMITS_PER_SECOND;
+    private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long retryBackoffMillis = DEFAULT_RETRY_BACKOFF_MILLIS;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private WeChatTracer tracer;
+    private volatile Binding binding;
+
+    public TemplateMessageSendEngine(AppAccessTokenCache tokenCache, SendCheckpointStore checkpointStore) {
+        this(tokenCache, checkpointStore, ClientHttpRequestFactorySelector.getRequestFactory());
+    }
+
+    public TemplateMessageSendEngine(AppAccessTokenCache tokenCache, SendCheckpointStore checkpointStore, ClientHttpRequestFactory requestFactory) {
+        Assert.notNull(tokenCache, "The tokenCache property cannot be null");
+        Assert.notNull(checkpointStore, "The checkpointStore property cannot be null");
+        Assert.notNull(requestFactory, "The requestFactory property cannot be null");
+        this.tokenCache = tokenCache;
+        this.checkpointStore = checkpointStore;
+        this.requestFactory = requestFactory;
+    }
+
+    /**
+     * @param concurrency the number of messages sent in parallel
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param permitsPerSecond the maximum number of send calls per second, retries included
+     */
+    public void setPermitsPerSecond(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * @param maxAttempts the maximum number of attempts per message, including the first one
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @param retryBackoffMillis the delay before the first retry, doubled for every further retry
+     */
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * @param checkpointInterval the number of messages handled between two checkpoints
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Records a span for every send call, tagged with its attempt number.
+     * @param tracer the tracer
+     */
+    public void setTracer(WeChatTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Sends the given messages, resuming after the last checkpoint of the job, and waits until all of them are handled.
+     * @param jobId the id of the job, used as checkpoint key; must be the same when resuming
+     * @param messages the messages to send, in a stable order across restarts
+     * @return the report of this run
+     * @throws WeChatApiException if the job was stopped by WeChat, e.g. daily quota reached or no access token issued;
+     * progress up to the last checkpoint is kept, and messages not sent yet are sent when the job is resumed
+     * @throws InterruptedException if interrupted; progress up to the last checkpoint is kept
+     */
+    public SendReport send(String jobId, Iterator<TemplateMessage> messages) throws InterruptedException {
+        final Job job = new Job(jobId, checkpointStore.load(jobId));
+        long skipped = 0;
+        while (skipped < job.watermark && messages.hasNext()) {
+            messages.next();
+            skipped++;
+        }
+        final SimpleRateLimiter rateLimiter = new SimpleRateLimiter(permitsPerSecond);
+        final Semaphore inFlight = new Semaphore(concurrency * 2);
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrency);
+        long start = System.nanoTime();
+        try {
+            long position = job.watermark;
+            while (!job.isAborted() && messages.hasNext()) {
+                final TemplateMessage message = messages.next();
+                final long index = position++;
+                inFlight.acquire();
+                if (job.isAborted()) {
+                    inFlight.release();
+                    break;
+                }
+                rateLimiter.acquire();
+                executorService.execute(() -> {
+                    try {
+                        // an interrupted or aborted delivery stays incomplete, so the checkpoint stops before it and a restart sends it again
+                        if (deliver(message, job, rateLimiter)) {
+                            job.complete(index);
+                        }
+                    } catch (Throwable e) {
+                        // e.g. the checkpoint store failed: stop rather than send messages whose progress cannot be recorded
+                        job.abort(e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            }
+            inFlight.acquire(concurrency * 2);
+        } finally {
+            executorService.shutdownNow();
+            try {
+                job.checkpoint();
+            } catch (RuntimeException e) {
+                job.abort(e);
+            }
+        }
+        job.rethrowAbortCause();
+        return job.report(skipped, System.nanoTime() - start);
+    }
+
+    // internal helpers
+
+    // returns false if interrupted or aborted before the message was sent or definitively failed
+    private boolean deliver(TemplateMessage message, Job job, SimpleRateLimiter rateLimiter) {
+        for (int attempt = 1; ; attempt++) {
+            if (Thread.currentThread().isInterrupted() || job.isAborted()) {
+                return false;
+            }
+            String accessToken = null;
+            String failure;
+            RuntimeException error;
+            try {
+                accessToken = tokenCache.getAccessToken();
+                TraceContext.setAttempt(attempt);
+                getApi(accessToken).templateMessageOperations().send(message);
+                job.sent.incrementAndGet();
+                return true;
+            } catch (WeChatApiException e) {
+                failure = String.valueOf(e.getErrorCode());
+                error = e;
+                if (contains(JOB_FATAL_ERROR_CODES, e.getErrorCode())
+                        || (accessToken == null && !contains(TRANSIENT_ERROR_CODES, e.getErrorCode()))) {
+                    // without quota or an access token no further message can be sent, e.g. 40125 invalid secret or 40164 ip not whitelisted
+                    job.abort(e);
+                    return false;
+                }
+                if (accessToken != null && contains(INVALID_TOKEN_ERROR_CODES, e.getErrorCode())) {
+                    tokenCache.invalidate(accessToken);
+                } else if (!contains(TRANSIENT_ERROR_CODES, e.getErrorCode())) {
+                    job.fail(message, failure);
+                    return true;
+                }
+            } catch (HttpServerErrorException e) {
+                // e.g. 502 or 503 from a gateway in front of the API
+                failure = String.valueOf(e.getStatusCode().value());
+                error = e;
+            } catch (ResourceAccessException e) {
+                failure = e.getClass().getSimpleName();
+                error = e;
+            } catch (RuntimeException e) {
+                if (accessToken == null) {
+                    job.abort(e);
+                    return false;
+                }
+                job.fail(message, e.getClass().getSimpleName());
+                return true;
+            } finally {
+                TraceContext.clear();
+            }
+            if (attempt >= maxAttempts) {
+                if (accessToken == null) {
+                    job.abort(error);
+                    return false;
+                }
+                job.fail(message, failure);
+                return true;
+            }
+            try {
+                Thread.sleep(retryBackoffMillis << (attempt - 1));
+                rateLimiter.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    // one binding per app access token, replaced whenever the token is renewed
+    private WeChat getApi(String accessToken) {
+        Binding current = binding;
+        if (current == null || !current.accessToken.equals(accessToken)) {
+            WeChatTemplate weChatTemplate = new WeChatTemplate(accessToken, tokenCache.getApiBaseUrl());
+            weChatTemplate.setRequestFactory(requestFactory);
+            if (tracer != null) {
+                weChatTemplate.setTracer(tracer, tokenCache.getAppId());
+            }
+            current = new Binding(accessToken, weChatTemplate);
+            binding = current;
+        }
+        return current.api;
+    }
+
+    private static boolean contains(int[] codes, int code) {
+        for (int c : codes) {
+            if (c == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class Binding {
+        private final String accessToken;
+        private final WeChat api;
+
+        Binding(String accessToken, WeChat api) {
+            this.accessToken = accessToken;
+            this.api = api;
+        }
+    }
+
+    private class Job {
+        private final String jobId;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> failuresByCode = new ConcurrentHashMap<>();
+        private final Queue<String> failedRecipients = new ConcurrentLinkedQueue<>();
+        private final AtomicReference<Throwable> abortCause = new AtomicReference<>();
+        // messages below the watermark are all handled; bit i of completed is message watermark + i
+        private long watermark;
+        private long checkpointed;
+        private BitSet completed = new BitSet();
+
+        Job(String jobId, long watermark) {
+            this.jobId = jobId;
+            this.watermark = watermark;
+            this.checkpointed = watermark;
+        }
+
+        void fail(TemplateMessage message, String code) {
+            failed.incrementAndGet();
+            failuresByCode.computeIfAbsent(code, key -> new AtomicLong()).incrementAndGet();
+            failedRecipients.add(message.getToUser());
+        }
+
+        void abort(Throwable cause) {
+            if (abortCause.compareAndSet(null, cause)) {
+                logger.warn("Job " + jobId + " stopped", cause);
+            }
+        }
+
+        boolean isAborted() {
+            return abortCause.get() != null;
+        }
+
+        void rethrowAbortCause() {
+            Throwable cause = abortCause.get();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+        }
+
+        synchronized void complete(long index) {
+            completed.set((int) (index - watermark));
+            int handled = completed.nextClearBit(0);
+            if (handled > 0) {
+                completed = completed.get(handled, Math.max(handled, completed.length()));
+                watermark += handled;
+                if (watermark - checkpointed >= checkpointInterval) {
+                    checkpoint();
+                }
+            }
+        }
+
+        synchronized void checkpoint() {
+            if (watermark != checkpointed) {
+                checkpointStore.save(jobId, watermark);
+                checkpointed = watermark;
+                logger.debug("Job " + jobId + " checkpointed at " + watermark);
+            }
+        }
+
+        SendReport report(long skipped, long elapsedNanos) {
+            Map<String, Long> failures = new HashMap<>();
+            for (Map.Entry<String, AtomicLong> failure : failuresByCode.entrySet()) {
+                failures.put(failure.getKey(), failure.getValue().get());
+            }
+            return new SendReport(skipped, sent.get(), failed.get(), elapsedNanos, failures, new ArrayList<>(failedRecipients));
+        }
+    }
+}
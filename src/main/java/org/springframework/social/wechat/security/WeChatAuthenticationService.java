@@ -1,11 +1,138 @@
 package org.springframework.social.wechat.security;
 
+import java.util.concurrent.Executor;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.social.oauth2.AccessGrant;
+import org.springframework.social.oauth2.OAuth2Operations;
+import org.springframework.social.oauth2.OAuth2Parameters;
+import org.springframework.social.security.SocialAuthenticationRedirectException;
+import org.springframework.social.security.SocialAuthenticationToken;
 import org.springframework.social.security.provider.OAuth2AuthenticationService;
+import org.springframework.social.wechat.WeChatOAuth2Template;
 import org.springframework.social.wechat.api.WeChat;
 import org.springframework.social.wechat.connect.WeChatConnectionFactory;
+import org.springframework.social.wechat.connect.WeChatStateTokenService;
+import org.springframework.util.StringUtils;
+import org.springframework.web.client.RestClientException;
 
 public class WeChatAuthenticationService extends OAuth2AuthenticationService<WeChat> {
+    /**
+     * The cookie holding the nonce the state tokens of a browser are bound to.
+     */
+    public static final String NONCE_COOKIE_NAME = "wechat_oauth_nonce";
+
+    private String defaultScope;
+
     public WeChatAuthenticationService(String appId, String appSecret) {
-        super(new WeChatConnectionFactory(appId, appSecret));
+        this(new WeChatConnectionFactory(appId, appSecret));
+    }
+
+    public WeChatAuthenticationService(WeChatConnectionFactory connectionFactory) {
+        super(connectionFactory);
+    }
+
+    /**
+     * Makes sign-ins fetch the user profile on the given executor right after the code exchange,
+     * in parallel with the connection repository lookup, instead of once per adapter callback afterwards.
+     * Sign-in latency then comes down to roughly one token call plus one userinfo call.
+     * @param profilePrefetchExecutor the executor, or null to fetch the profile lazily
+     * @see WeChatConnectionFactory#setProfilePrefetchExecutor(Executor)
+     */
+    public void setProfilePrefetchExecutor(Executor profilePrefetchExecutor) {
+        ((WeChatConnectionFactory) getConnectionFactory()).setProfilePrefetchExecutor(profilePrefetchExecutor);
+    }
+
+    /**
+     * Protects sign-ins against CSRF with signed state tokens, without anything kept in the HTTP session.
+     * The authorize redirect sets an HttpOnly, SameSite=Lax cookie holding a nonce and carries a state token bound to that nonce;
+     * a callback with a code is rejected unless its state verifies against the nonce cookie of the same browser.
+     * A "state" parameter passed to the sign-in URL is ignored, as the state must come from the service.
+     * With a replay guard on the service, a callback repeated with the same state and code still passes,
+     * and an {@link org.springframework.social.wechat.AuthorizationCodeExchangeCache} on the OAuth template then answers it
+     * with the grant of the first exchange instead of a 40163 (code been used) error.
+     * @param stateTokenService the state token service, or null to leave the state unchecked
+     * @see WeChatConnectionFactory#setStateTokenService(WeChatStateTokenService)
+     */
+    public void setStateTokenService(WeChatStateTokenService stateTokenService) {
+        ((WeChatConnectionFactory) getConnectionFactory()).setStateTokenService(stateTokenService);
+    }
+
+    @Override
+    public void setDefaultScope(String defaultScope) {
+        super.setDefaultScope(defaultScope);
+        this.defaultScope = defaultScope;
+    }
+
+    @Override
+    public SocialAuthenticationToken getAuthToken(HttpServletRequest request, HttpServletResponse response) throws SocialAuthenticationRedirectException {
+        String code = request.getParameter("code");
+        WeChatStateTokenService stateTokenService = ((WeChatConnectionFactory) getConnectionFactory()).getStateTokenService();
+        if (stateTokenService != null && !StringUtils.hasText(code)) {
+            redirectWithStateToken(request, response, stateTokenService);
+        }
+        if (stateTokenService != null && !stateTokenService.verify(request.getParameter("state"), getNonce(request), code)) {
+            throw new BadCredentialsException("Invalid or expired OAuth2 state parameter");
+        }
+        OAuth2Operations oauthOperations = getConnectionFactory().getOAuthOperations();
+        if (StringUtils.hasText(code) && oauthOperations instanceof WeChatOAuth2Template) {
+            // same as the superclass, but passes the state on so that the authorization code cache can recognize a repeated callback
+            try {
+                AccessGrant accessGrant = ((WeChatOAuth2Template) oauthOperations).exchangeForAccess(code, request.getParameter("state"),
+                        buildReturnToUrl(request), null);
+                return new SocialAuthenticationToken(getConnectionFactory().createConnection(accessGrant), null);
+            } catch (RestClientException e) {
+                logger.debug("failed to exchange for access", e);
+                return null;
+            }
+        }
+        return super.getAuthToken(request, response);
+    }
+
+    // internal helpers
+
+    // same as the redirect of the superclass, but with a state token bound to the nonce cookie instead of a caller-supplied state
+    private void redirectWithStateToken(HttpServletRequest request, HttpServletResponse response, WeChatStateTokenService stateTokenService)
+            throws SocialAuthenticationRedirectException {
+        String nonce = getNonce(request);
+        if (!stateTokenService.isNonce(nonce)) {
+            nonce = stateTokenService.createNonce();
+        }
+        // (re)set on every redirect, so the cookie lives at least as long as the state token it is sent with
+        StringBuilder cookie = new StringBuilder(NONCE_COOKIE_NAME).append('=').append(nonce)
+                .append("; Max-Age=").append(stateTokenService.getValidityMillis() / 1000)
+                .append("; Path=").append(StringUtils.hasLength(request.getContextPath()) ? request.getContextPath() : "/")
+                .append("; HttpOnly; SameSite=Lax");
+        if (request.isSecure()) {
+            cookie.append("; Secure");
+        }
+        response.addHeader("Set-Cookie", cookie.toString());
+        OAuth2Parameters parameters = new OAuth2Parameters();
+        parameters.setRedirectUri(buildReturnToUrl(request));
+        String scope = request.getParameter("scope");
+        if (StringUtils.hasLength(scope)) {
+            parameters.setScope(scope);
+        } else if (StringUtils.hasLength(defaultScope)) {
+            parameters.setScope(defaultScope);
+        }
+        parameters.add("state", stateTokenService.createState(nonce));
+        addCustomParameters(parameters);
+        throw new SocialAuthenticationRedirectException(getConnectionFactory().getOAuthOperations().buildAuthenticateUrl(parameters));
+    }
+
+    private static String getNonce(HttpServletRequest request) {
+        Cookie[] cookies = request.getCookies();
+        if (cookies != null) {
+            for (Cookie cookie : cookies) {
+                if (NONCE_COOKIE_NAME.equals(cookie.getName())) {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
     }
 }
@@ -0,0 +1,34 @@
+package org.springframework.social.wechat.support;
+
+/**
+ * Source of the current time, so that time-dependent code can be driven by a fake clock in tests.
+ * Wall-clock time is used for timestamps exchanged with WeChat and stored with connections,
+ * monotonic time for measuring how long remains until a deadline, immune to system clock adjustments.
+ * @author Sam Song
+ */
+public interface Clock {
+    /**
+     * The clock of the JVM.
+     */
+    Clock SYSTEM = new Clock() {
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * @return the wall-clock time, in milliseconds since the epoch
+     * @see System#currentTimeMillis()
+     */
+    long currentTimeMillis();
+
+    /**
+     * @return the monotonic time, in nanoseconds from an arbitrary origin
+     * @see System#nanoTime()
+     */
+    long nanoTime();
+}
@@ -0,0 +1,42 @@
+package org.springframework.social.wechat.support;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.util.Assert;
+
+/**
+ * Rate limiter that hands out permits evenly spaced at a fixed rate, without bursts.
+ * Each caller reserves the next free slot with a single compare-and-set and then sleeps until that slot, outside of any lock.
+ * @author Sam Song
+ */
+public class SimpleRateLimiter {
+    private final long intervalNanos;
+    private final AtomicLong nextFreeNanos = new AtomicLong(System.nanoTime());
+
+    /**
+     * @param permitsPerSecond the number of permits handed out per second
+     */
+    public SimpleRateLimiter(double permitsPerSecond) {
+        Assert.isTrue(permitsPerSecond > 0, "permitsPerSecond must be positive");
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    }
+
+    /**
+     * Blocks until a permit is available.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void acquire() throws InterruptedException {
+        for (;;) {
+            long now = System.nanoTime();
+            long nextFree = nextFreeNanos.get();
+            long permitAt = nextFree - now > 0 ? nextFree : now;
+            if (nextFreeNanos.compareAndSet(nextFree, permitAt + intervalNanos)) {
+                if (permitAt > now) {
+                    TimeUnit.NANOSECONDS.sleep(permitAt - now);
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.springframework.social.wechat.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * {@link SpanExporter} that keeps all spans in memory, for tests.
+ * @author Sam Song
+ */
+public class InMemorySpanExporter implements SpanExporter {
+    private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+
+    @Override
+    public void export(Span span) {
+        spans.add(span);
+    }
+
+    /**
+     * @return the spans exported so far, in export order
+     */
+    public List<Span> getSpans() {
+        return new ArrayList<>(spans);
+    }
+
+    public void clear() {
+        spans.clear();
+    }
+}
@@ -0,0 +1,27 @@
+package org.springframework.social.wechat.trace;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides which calls are traced. Unsampled calls pass through the interceptor untouched.
+ * @author Sam Song
+ */
+public interface Sampler {
+    /**
+     * @param endpoint the path of the endpoint about to be called
+     * @return true if the call should be traced
+     */
+    boolean isSampled(String endpoint);
+
+    static Sampler always() {
+        return endpoint -> true;
+    }
+
+    /**
+     * @param ratio the fraction of calls to trace, between 0 and 1
+     * @return a sampler tracing a random fraction of the calls
+     */
+    static Sampler ratio(final double ratio) {
+        return endpoint -> ratio >= 1 || ThreadLocalRandom.current().nextDouble() < ratio;
+    }
+}
@@ -0,0 +1,126 @@
+package org.springframework.social.wechat.trace;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timing and outcome of a single HTTP call to WeChat, as recorded by {@link TracingClientHttpRequestInterceptor}.
+ * The phases are, in order:
+ * {@link #PHASE_EXCHANGE} (connection setup incl. DNS and TLS, sending the request and WeChat's processing, until the response headers arrive),
+ * {@link #PHASE_TRANSFER} (reading the response body) and
+ * {@link #PHASE_PARSE} (converting the body, e.g. JSON binding, until the response is closed).
+ * DNS, connect and TLS cannot be told apart at the RestTemplate level; they fall into the exchange phase.
+ * @author Sam Song
+ */
+public class Span {
+    public static final String PHASE_EXCHANGE = "exchange";
+    public static final String PHASE_TRANSFER = "transfer";
+    public static final String PHASE_PARSE = "parse";
+
+    private final String endpoint;
+    private final String appId;
+    private final int attempt;
+    private final long startTimeMillis;
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>(4);
+    private int statusCode;
+    private Integer errorCode;
+    private String error;
+    private long durationNanos;
+
+    Span(String endpoint, String appId, int attempt, long startTimeMillis) {
+        this.endpoint = endpoint;
+        this.appId = appId;
+        this.attempt = attempt;
+        this.startTimeMillis = startTimeMillis;
+    }
+
+    /**
+     * @return the path of the called endpoint, e.g. /sns/userinfo
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the appId the call was made for, or null if unknown
+     */
+    public String getAppId() {
+        return appId;
+    }
+
+    /**
+     * @return the attempt number, 1 for the first try of a call
+     * @see TraceContext#setAttempt(int)
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    public long getDurationMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(durationNanos);
+    }
+
+    /**
+     * @return the duration of each recorded phase in microseconds, in the order the phases happened
+     */
+    public Map<String, Long> getPhaseMicros() {
+        Map<String, Long> phaseMicros = new LinkedHashMap<>(phaseNanos.size());
+        for (Map.Entry<String, Long> phase : phaseNanos.entrySet()) {
+            phaseMicros.put(phase.getKey(), TimeUnit.NANOSECONDS.toMicros(phase.getValue()));
+        }
+        return Collections.unmodifiableMap(phaseMicros);
+    }
+
+    /**
+     * @return the HTTP status code, or 0 if no response was received
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * @return the errcode in the response body, or null if the body carried none
+     */
+    public Integer getErrorCode() {
+        return errorCode;
+    }
+
+    /**
+     * @return the name of the exception that failed the call, or null if the call completed
+     */
+    public String getError() {
+        return error;
+    }
+
+    void addPhase(String phase, long nanos) {
+        phaseNanos.put(phase, nanos);
+    }
+
+    void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    void setErrorCode(Integer errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void setDurationNanos(long durationNanos) {
+        this.durationNanos = durationNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Span[endpoint=" + endpoint + ", appId=" + appId + ", attempt=" + attempt + ", status=" + statusCode
+                + ", errcode=" + errorCode + ", error=" + error + ", durationMicros=" + getDurationMicros() + ", phases=" + getPhaseMicros() + "]";
+    }
+}
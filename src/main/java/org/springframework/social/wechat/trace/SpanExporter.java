@@ -0,0 +1,10 @@
+package org.springframework.social.wechat.trace;
+
+/**
+ * Receives finished spans, e.g. to forward them to a tracing backend.
+ * Called on the thread that made the call, so implementations should hand off any slow work.
+ * @author Sam Song
+ */
+public interface SpanExporter {
+    void export(Span span);
+}
@@ -0,0 +1,32 @@
+package org.springframework.social.wechat.trace;
+
+/**
+ * Thread-bound context of the call being made, read by {@link TracingClientHttpRequestInterceptor}.
+ * Code that retries WeChat calls sets the attempt number before each try, so spans of retries can be told apart.
+ * @author Sam Song
+ */
+public final class TraceContext {
+    private static final ThreadLocal<Integer> attempt = new ThreadLocal<>();
+
+    private TraceContext() {
+    }
+
+    /**
+     * @param attempt the number of the attempt about to be made, 1 for the first try
+     */
+    public static void setAttempt(int attempt) {
+        TraceContext.attempt.set(attempt);
+    }
+
+    /**
+     * @return the current attempt number, 1 if none was set
+     */
+    public static int getAttempt() {
+        Integer current = attempt.get();
+        return current != null ? current : 1;
+    }
+
+    public static void clear() {
+        attempt.remove();
+    }
+}
@@ -0,0 +1,180 @@
+package org.springframework.social.wechat.trace;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Client request interceptor that records a {@link Span} for every sampled call.
+ * The response body of a sampled call is buffered so that transfer and parse time can be measured apart
+ * and the errcode can be picked out of it without a second JSON parse; WeChat responses are small, so this is cheap.
+ * The span is exported when the RestTemplate closes the response, i.e. after the body has been converted.
+ * @author Sam Song
+ */
+class TracingClientHttpRequestInterceptor implements ClientHttpRequestInterceptor {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Sampler sampler;
+
+    private final SpanExporter exporter;
+
+    private final String appId;
+
+    TracingClientHttpRequestInterceptor(Sampler sampler, SpanExporter exporter, String appId) {
+        this.sampler = sampler;
+        this.exporter = exporter;
+        this.appId = appId;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution) throws IOException {
+        String endpoint = request.getURI().getPath();
+        if (!sampler.isSampled(endpoint)) {
+            return execution.execute(request, body);
+        }
+        Span span = new Span(endpoint, appId != null ? appId : queryParameter(request.getURI().getRawQuery(), "appid"),
+                TraceContext.getAttempt(), System.currentTimeMillis());
+        long start = System.nanoTime();
+        ClientHttpResponse response;
+        try {
+            response = execution.execute(request, body);
+            // some request factories, e.g. HttpURLConnection-based ones, only complete the exchange once the status is read
+            span.setStatusCode(response.getRawStatusCode());
+        } catch (IOException | RuntimeException e) {
+            span.addPhase(Span.PHASE_EXCHANGE, System.nanoTime() - start);
+            finish(span, start, e);
+            throw e;
+        }
+        long exchanged = System.nanoTime();
+        span.addPhase(Span.PHASE_EXCHANGE, exchanged - start);
+        byte[] content;
+        try {
+            InputStream responseBody = response.getBody();
+            content = responseBody != null ? StreamUtils.copyToByteArray(responseBody) : EMPTY;
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            finish(span, start, e);
+            throw e;
+        }
+        long transferred = System.nanoTime();
+        span.addPhase(Span.PHASE_TRANSFER, transferred - exchanged);
+        span.setErrorCode(extractErrorCode(content));
+        return new TracedResponse(response, content, span, start, transferred);
+    }
+
+    // internal helpers
+
+    private void finish(Span span, long start, Exception error) {
+        if (error != null) {
+            span.setError(error.getClass().getName());
+        }
+        span.setDurationNanos(System.nanoTime() - start);
+        exporter.export(span);
+    }
+
+    private static String queryParameter(String query, String name) {
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(name + "=")) {
+                return pair.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    // picks the errcode out of a WeChat JSON response without a full parse
+    static Integer extractErrorCode(byte[] content) {
+        String text = new String(content, StandardCharsets.ISO_8859_1);
+        int key = text.indexOf("\"errcode\"");
+        if (key < 0) {
+            return null;
+        }
+        int i = text.indexOf(':', key);
+        if (i < 0) {
+            return null;
+        }
+        i++;
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) {
+            i++;
+        }
+        int digits = i;
+        if (digits < text.length() && text.charAt(digits) == '-') {
+            digits++;
+        }
+        int end = digits;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        if (end == digits) {
+            return null;
+        }
+        try {
+            return Integer.valueOf(text.substring(i, end));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private class TracedResponse implements ClientHttpResponse {
+        private final ClientHttpResponse response;
+        private final byte[] content;
+        private final Span span;
+        private final long start;
+        private final long transferred;
+        private boolean finished;
+
+        TracedResponse(ClientHttpResponse response, byte[] content, Span span, long start, long transferred) {
+            this.response = response;
+            this.content = content;
+            this.span = span;
+            this.start = start;
+            this.transferred = transferred;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public HttpHeaders getHeaders() {
+            return response.getHeaders();
+        }
+
+        @Override
+        public HttpStatus getStatusCode() throws IOException {
+            return response.getStatusCode();
+        }
+
+        @Override
+        public int getRawStatusCode() throws IOException {
+            return response.getRawStatusCode();
+        }
+
+        @Override
+        public String getStatusText() throws IOException {
+            return response.getStatusText();
+        }
+
+        @Override
+        public void close() {
+            response.close();
+            if (!finished) {
+                finished = true;
+                span.addPhase(Span.PHASE_PARSE, System.nanoTime() - transferred);
+                finish(span, start, null);
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.springframework.social.wechat.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.util.Assert;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Entry point of the tracing SPI: pairs a {@link Sampler} with a {@link SpanExporter}
+ * and creates the interceptors that record spans on the RestTemplates of the WeChat bindings.
+ * @author Sam Song
+ */
+public class WeChatTracer {
+    private final Sampler sampler;
+    private final SpanExporter exporter;
+
+    public WeChatTracer(SpanExporter exporter) {
+        this(Sampler.always(), exporter);
+    }
+
+    public WeChatTracer(Sampler sampler, SpanExporter exporter) {
+        Assert.notNull(sampler, "The sampler property cannot be null");
+        Assert.notNull(exporter, "The exporter property cannot be null");
+        this.sampler = sampler;
+        this.exporter = exporter;
+    }
+
+    /**
+     * @param appId the appId recorded on the spans, or null to take it from the appid request parameter
+     * @return an interceptor tracing the calls of one RestTemplate
+     */
+    public ClientHttpRequestInterceptor createInterceptor(String appId) {
+        return new TracingClientHttpRequestInterceptor(sampler, exporter, appId);
+    }
+
+    /**
+     * Adds a tracing interceptor to the given RestTemplate, replacing the one a previous tracer installed,
+     * so that setting a tracer again does not record every call twice.
+     * @param restTemplate the RestTemplate to trace
+     * @param appId the appId recorded on the spans, or null to take it from the appid request parameter
+     */
+    public void install(RestTemplate restTemplate, String appId) {
+        List<ClientHttpRequestInterceptor> interceptors = new ArrayList<>();
+        if (restTemplate.getInterceptors() != null) {
+            interceptors.addAll(restTemplate.getInterceptors());
+        }
+        interceptors.removeIf(interceptor -> interceptor instanceof TracingClientHttpRequestInterceptor);
+        interceptors.add(createInterceptor(appId));
+        restTemplate.setInterceptors(interceptors);
+    }
+}
@@ -0,0 +1,112 @@
+package org.springframework.social.wechat.connect;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.social.ExpiredAuthorizationException;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.wechat.api.WeChat;
+import org.springframework.social.wechat.api.impl.WeChatTemplate;
+
+/**
+ * Compares the cost of calling the API of a connection through the former dynamic proxy,
+ * which took the connection monitor and read the wall clock on every call, with the current expiry-checking delegate.
+ * Run its main method by hand; it is not part of the test suite, which checks the delegate in {@link WeChatOAuth2ConnectionTests}.
+ * Results are printed as nanoseconds per call, single-threaded and with contending threads.
+ * @author Sam Song
+ */
+public class WeChatOAuth2ConnectionDispatchBenchmark {
+    private static final int WARMUP_CALLS = 1000000;
+    private static final int MEASURED_CALLS = 2000000;
+    private static final int THREADS = 4;
+
+    // written with the call results so the calls cannot be optimized away
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        long expireTime = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2);
+        ConnectionData data = new ConnectionData("wechat", "openId", null, null, null, "token", null, "refreshToken", expireTime);
+        WeChat delegate = new WeChatConnectionFactory("appId", "appSecret").createConnection(data).getApi();
+        WeChat proxy = createLegacyProxy(new WeChatTemplate("token"), expireTime);
+
+        for (int round = 0; round < 2; round++) {
+            report("proxy", 1, measure(proxy, 1));
+            report("delegate", 1, measure(delegate, 1));
+        }
+        report("proxy", THREADS, measure(proxy, THREADS));
+        report("delegate", THREADS, measure(delegate, THREADS));
+    }
+
+    // internal helpers
+
+    private static void report(String name, int threads, double nanosPerCall) {
+        System.out.println(name + ", " + threads + " thread(s): " + Math.round(nanosPerCall * 10) / 10.0 + " ns/call");
+    }
+
+    // per thread, calls are sequential: wall time divided by the calls of one thread is the latency of a call
+    private static double measure(WeChat api, int threads) throws Exception {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        try {
+            run(executorService, api, threads, WARMUP_CALLS);
+            long start = System.nanoTime();
+            sink += run(executorService, api, threads, MEASURED_CALLS);
+            return (double) (System.nanoTime() - start) / MEASURED_CALLS;
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    private static int run(ExecutorService executorService, final WeChat api, int threads, final int count) throws Exception {
+        List<Callable<Integer>> calls = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            calls.add(() -> call(api, count));
+        }
+        int sink = 0;
+        for (Future<Integer> result : executorService.invokeAll(calls)) {
+            sink += result.get();
+        }
+        return sink;
+    }
+
+    private static int call(WeChat api, int count) {
+        int sink = 0;
+        for (int i = 0; i < count; i++) {
+            sink += System.identityHashCode(api.userOperations()) & 1;
+        }
+        return sink;
+    }
+
+    // the dispatch WeChatOAuth2Connection used before: lock the monitor, check expiry under the lock again, call reflectively
+    private static WeChat createLegacyProxy(final WeChat api, final Long expireTime) {
+        final Object monitor = new Object();
+        return (WeChat) Proxy.newProxyInstance(WeChat.class.getClassLoader(), new Class<?>[] { WeChat.class }, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                synchronized (monitor) {
+                    if (hasExpired()) {
+                        throw new ExpiredAuthorizationException("wechat");
+                    }
+                    try {
+                        return method.invoke(api, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getTargetException();
+                    }
+                }
+            }
+
+            private boolean hasExpired() {
+                synchronized (monitor) {
+                    return expireTime != null && System.currentTimeMillis() >= expireTime;
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,43 @@
+package org.springframework.social.wechat.connect;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.springframework.social.ExpiredAuthorizationException;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.wechat.api.WeChat;
+
+/**
+ * Checks the expiry-checking API delegate of {@link WeChatOAuth2Connection}.
+ * @author Sam Song
+ */
+public class WeChatOAuth2ConnectionTests {
+
+    @Test
+    public void delegateReturnsBoundOperations() {
+        WeChat api = createConnection(System.currentTimeMillis() + TimeUnit.HOURS.toMillis(2)).getApi();
+        assertSame(api.userOperations(), api.userOperations());
+    }
+
+    @Test
+    public void delegateRejectsExpiredToken() {
+        WeChat api = createConnection(System.currentTimeMillis() - 1).getApi();
+        try {
+            api.userOperations();
+            fail("Expected ExpiredAuthorizationException");
+        } catch (ExpiredAuthorizationException e) {
+            // expected
+        }
+    }
+
+    // internal helpers
+
+    private static WeChatOAuth2Connection createConnection(long expireTime) {
+        WeChatConnectionFactory connectionFactory = new WeChatConnectionFactory("appId", "appSecret");
+        ConnectionData data = new ConnectionData("wechat", "openId", null, null, null, "token", null, "refreshToken", expireTime);
+        return (WeChatOAuth2Connection) connectionFactory.createConnection(data);
+    }
+}
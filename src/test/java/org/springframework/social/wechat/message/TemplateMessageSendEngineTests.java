@@ -0,0 +1,147 @@
+package org.springframework.social.wechat.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.support.ClientHttpRequestFactorySelector;
+import org.springframework.social.wechat.api.TemplateMessage;
+import org.springframework.social.wechat.api.WeChatApiException;
+import org.springframework.social.wechat.simulator.WeChatApiSimulator;
+
+/**
+ * Runs {@link TemplateMessageSendEngine} jobs against a {@link WeChatApiSimulator}.
+ * @author Sam Song
+ */
+public class TemplateMessageSendEngineTests {
+    private static final int RECIPIENTS = 500;
+
+    private final WeChatApiSimulator simulator = new WeChatApiSimulator();
+    private final MemoryCheckpointStore checkpointStore = new MemoryCheckpointStore();
+    private TemplateMessageSendEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator.start();
+        AppAccessTokenCache tokenCache = new AppAccessTokenCache("appId", "appSecret", simulator.getBaseUrl(),
+                ClientHttpRequestFactorySelector.getRequestFactory());
+        engine = new TemplateMessageSendEngine(tokenCache, checkpointStore);
+        engine.setConcurrency(4);
+        engine.setPermitsPerSecond(10000);
+        engine.setRetryBackoffMillis(1);
+        engine.setCheckpointInterval(10);
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    @Test
+    public void sendAll() throws Exception {
+        SendReport report = engine.send("job", messages(RECIPIENTS).iterator());
+        assertEquals(RECIPIENTS, report.getSent());
+        assertEquals(0, report.getFailed());
+        assertEquals(RECIPIENTS, checkpointStore.load("job"));
+    }
+
+    @Test
+    public void stopOnDailyQuotaAndResume() throws Exception {
+        // the token fetch counts towards the quota as well
+        simulator.setQuota(50);
+        try {
+            engine.send("job", messages(RECIPIENTS).iterator());
+            fail("Expected the job to stop on errcode 45009");
+        } catch (WeChatApiException e) {
+            assertEquals(45009, e.getErrorCode());
+        }
+        long checkpoint = checkpointStore.load("job");
+        assertTrue("checkpoint " + checkpoint + " beyond the messages sent", checkpoint <= 49);
+
+        simulator.setQuota(Long.MAX_VALUE);
+        SendReport report = engine.send("job", messages(RECIPIENTS).iterator());
+        assertEquals(checkpoint, report.getSkipped());
+        assertEquals(RECIPIENTS - checkpoint, report.getSent());
+        assertEquals(0, report.getFailed());
+        assertEquals(RECIPIENTS, checkpointStore.load("job"));
+    }
+
+    @Test
+    public void stopWhenNoAccessTokenIsIssued() throws Exception {
+        AppAccessTokenCache tokenCache = new AppAccessTokenCache("", "appSecret", simulator.getBaseUrl(),
+                ClientHttpRequestFactorySelector.getRequestFactory());
+        engine = new TemplateMessageSendEngine(tokenCache, checkpointStore);
+        engine.setConcurrency(4);
+        try {
+            engine.send("job", messages(RECIPIENTS).iterator());
+            fail("Expected the job to stop when WeChat refuses the access token");
+        } catch (WeChatApiException e) {
+            assertEquals(40002, e.getErrorCode());
+        }
+        // one token fetch per worker at most, not one per message
+        assertTrue(simulator.getRequestCount() <= 4);
+        assertEquals(0, checkpointStore.load("job"));
+    }
+
+    @Test
+    public void stopWhenCheckpointStoreFails() throws Exception {
+        checkpointStore.failSaves = true;
+        try {
+            engine.send("job", messages(RECIPIENTS).iterator());
+            fail("Expected the job to stop when the checkpoint cannot be saved");
+        } catch (IllegalStateException e) {
+            assertEquals("store down", e.getMessage());
+        }
+        assertEquals(0, checkpointStore.load("job"));
+    }
+
+    @Test
+    public void reportFailedRecipients() throws Exception {
+        List<TemplateMessage> messages = messages(10);
+        messages.set(3, new TemplateMessage("", "templateId"));
+        messages.set(7, new TemplateMessage("", "templateId"));
+        SendReport report = engine.send("job", messages.iterator());
+        assertEquals(8, report.getSent());
+        assertEquals(2, report.getFailed());
+        assertEquals(Arrays.asList("", ""), report.getFailedRecipients());
+        assertEquals(Long.valueOf(2), report.getFailuresByCode().get("40003"));
+        assertEquals(10, checkpointStore.load("job"));
+    }
+
+    // internal helpers
+
+    private static List<TemplateMessage> messages(int count) {
+        List<TemplateMessage> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(new TemplateMessage("openId" + i, "templateId").addData("first", "Hello"));
+        }
+        return messages;
+    }
+
+    private static class MemoryCheckpointStore implements SendCheckpointStore {
+        private final Map<String, Long> positions = new ConcurrentHashMap<>();
+        private volatile boolean failSaves;
+
+        @Override
+        public long load(String jobId) {
+            return positions.getOrDefault(jobId, 0L);
+        }
+
+        @Override
+        public void save(String jobId, long position) {
+            if (failSaves) {
+                throw new IllegalStateException("store down");
+            }
+            positions.put(jobId, position);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package org.springframework.social.wechat.simulator;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a {@link WeChatLoadTestDriver} run: success count, throughput and latency percentiles of the successful logins.
+ * @author Sam Song
+ */
+public class LoadTestReport {
+    private final int logins;
+    private final int successes;
+    private final long elapsedNanos;
+    private final long[] sortedLatencies;
+
+    LoadTestReport(int logins, int successes, long elapsedNanos, long[] latencies) {
+        this.logins = logins;
+        this.successes = successes;
+        this.elapsedNanos = elapsedNanos;
+        this.sortedLatencies = Arrays.copyOf(latencies, successes);
+        Arrays.sort(this.sortedLatencies);
+    }
+
+    public int getLogins() {
+        return logins;
+    }
+
+    public int getSuccesses() {
+        return successes;
+    }
+
+    public int getFailures() {
+        return logins - successes;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    }
+
+    /**
+     * @return successful logins per second
+     */
+    public double getThroughput() {
+        return elapsedNanos > 0 ? successes * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos : 0;
+    }
+
+    /**
+     * @param percentile the percentile between 0 and 100, e.g. 99.9
+     * @return the latency of successful logins at the given percentile, in microseconds
+     */
+    public long getLatencyMicros(double percentile) {
+        if (sortedLatencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return TimeUnit.NANOSECONDS.toMicros(sortedLatencies[Math.min(Math.max(index, 0), sortedLatencies.length - 1)]);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("logins=%d failures=%d elapsed=%dms throughput=%.1f/s p50=%dus p99=%dus p999=%dus",
+                logins, getFailures(), getElapsedMillis(), getThroughput(),
+                getLatencyMicros(50), getLatencyMicros(99), getLatencyMicros(99.9));
+    }
+}
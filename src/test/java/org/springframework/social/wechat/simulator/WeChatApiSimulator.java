@@ -0,0 +1,432 @@
+package org.springframework.social.wechat.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.springframework.util.StringUtils;
+
+/**
+ * Embeddable, in-process simulator of the WeChat OAuth and user info endpoints, for load and integration tests
+ * that must not hit api.weixin.qq.com.
+ * It serves the authorize, access token, refresh token, userinfo and auth endpoints, as well as the app token and
+ * template message endpoints, with WeChat's paths and error codes,
+ * with configurable latency, an injectable rate of "system busy" errors, and a per-app call quota.
+ * Point a {@link org.springframework.social.wechat.connect.WeChatServiceProvider} at {@link #getBaseUrl()} for both base URLs.
+ * @author Sam Song
+ */
+public class WeChatApiSimulator {
+    public static final long ACCESS_TOKEN_EXPIRES_IN = 7200;
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private final ConcurrentMap<String, User> pendingCodes = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Token> accessTokens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, User> refreshTokens = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Token> appAccessTokens = new ConcurrentHashMap<>();
+    private final AtomicLong messageIds = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> callCounts = new ConcurrentHashMap<>();
+    private final AtomicLong requestCount = new AtomicLong();
+
+    private volatile long minLatencyMillis;
+    private volatile long maxLatencyMillis;
+    private volatile double errorRate;
+    private volatile long quota = Long.MAX_VALUE;
+
+    private HttpServer server;
+    private ExecutorService executorService;
+
+    /**
+     * Sets the latency added to every response, drawn uniformly from the given range.
+     * @param minLatencyMillis the minimum latency in milliseconds
+     * @param maxLatencyMillis the maximum latency in milliseconds
+     */
+    public void setLatency(long minLatencyMillis, long maxLatencyMillis) {
+        this.minLatencyMillis = minLatencyMillis;
+        this.maxLatencyMillis = Math.max(minLatencyMillis, maxLatencyMillis);
+    }
+
+    /**
+     * Sets the fraction of API calls answered with errcode -1 (system busy).
+     * @param errorRate the error rate between 0 and 1
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets how many calls each app may make before it is answered with errcode 45009 (quota exceeded).
+     * @param quota the number of calls per app
+     */
+    public void setQuota(long quota) {
+        this.quota = quota;
+    }
+
+    /**
+     * Starts the simulator on an ephemeral local port.
+     * @throws IOException if the server cannot be bound
+     */
+    public void start() throws IOException {
+        start(0);
+    }
+
+    /**
+     * Starts the simulator on the given local port.
+     * @param port the port to listen on, or 0 for an ephemeral port
+     * @throws IOException if the server cannot be bound
+     */
+    public synchronized void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        executorService = Executors.newCachedThreadPool();
+        server.setExecutor(executorService);
+        registerHandlers(server);
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if (server != null) {
+            server.stop(0);
+            executorService.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the base URL to use as both the open and the API base URL, e.g. http://127.0.0.1:54321
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /**
+     * Issues an authorization code as if the given user had just scanned the QR code of the given app.
+     * The same user key always maps to the same unionid, and to the same openid within an app.
+     * @param appId the WeChat app id
+     * @param userKey an arbitrary key identifying the simulated user
+     * @return a single-use authorization code
+     */
+    public String issueCode(String appId, String userKey) {
+        String code = UUID.randomUUID().toString();
+        pendingCodes.put(code, new User(appId, "o" + Integer.toHexString((appId + '/' + userKey).hashCode()),
+                "u" + Integer.toHexString(userKey.hashCode())));
+        return code;
+    }
+
+    /**
+     * @return the total number of requests served
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    // subclassing hooks
+
+    /**
+     * Registers the endpoint handlers.
+     * May be overridden to serve additional WeChat endpoints; overrides should call this implementation.
+     * @param server the server to register the handlers with
+     */
+    protected void registerHandlers(HttpServer server) {
+        server.createContext("/connect/qrconnect", new Endpoint(false) {
+            @Override
+            protected void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+                String redirectUri = params.get("redirect_uri");
+                String location = redirectUri + (redirectUri.indexOf('?') < 0 ? '?' : '&')
+                        + "code=" + issueCode(params.get("appid"), UUID.randomUUID().toString());
+                if (params.containsKey("state")) {
+                    location += "&state=" + URLEncoder.encode(params.get("state"), "UTF-8");
+                }
+                exchange.getResponseHeaders().set("Location", location);
+                exchange.sendResponseHeaders(302, -1);
+            }
+        });
+        server.createContext("/sns/oauth2/access_token", new ApiEndpoint() {
+            @Override
+            protected Map<String, Object> handle(Map<String, String> params) {
+                User user = pendingCodes.remove(String.valueOf(params.get("code")));
+                if (user == null) {
+                    return error(40163, "code been used");
+                }
+                return grant(user, UUID.randomUUID().toString());
+            }
+        });
+        server.createContext("/sns/oauth2/refresh_token", new ApiEndpoint() {
+            @Override
+            protected Map<String, Object> handle(Map<String, String> params) {
+                String refreshToken = String.valueOf(params.get("refresh_token"));
+                User user = refreshTokens.get(refreshToken);
+                if (user == null) {
+                    return error(40030, "invalid refresh_token");
+                }
+                // like WeChat, a refresh renews the access token but keeps the refresh token and its 30 day lifetime
+                return grant(user, refreshToken);
+            }
+        });
+        server.createContext("/sns/userinfo", new ApiEndpoint() {
+            @Override
+            protected Map<String, Object> handle(Map<String, String> params) {
+                User user = authorize(params);
+                if (user == null) {
+                    return error(40001, "invalid credential, access_token is invalid or not latest");
+                }
+                Map<String, Object> profile = new LinkedHashMap<>();
+                profile.put("openid", user.openId);
+                profile.put("nickname", "user-" + user.openId);
+                profile.put("sex", 1);
+                profile.put("province", "Guangdong");
+                profile.put("city", "Shenzhen");
+                profile.put("country", "CN");
+                profile.put("headimgurl", "http://thirdwx.qlogo.cn/mmopen/" + user.unionId + "/0");
+                profile.put("privilege", new String[0]);
+                profile.put("unionid", user.unionId);
+                return profile;
+            }
+        });
+        server.createContext("/sns/auth", new ApiEndpoint() {
+            @Override
+            protected Map<String, Object> handle(Map<String, String> params) {
+                if (authorize(params) == null) {
+                    return error(40001, "invalid credential, access_token is invalid or not latest");
+                }
+                return error(0, "ok");
+            }
+        });
+        server.createContext("/cgi-bin/token", new ApiEndpoint() {
+            @Override
+            protected Map<String, Object> handle(Map<String, String> params) {
+                if (!"client_credential".equals(params.get("grant_type")) || !StringUtils.hasText(params.get("appid"))) {
+                    return error(40002, "invalid grant_type");
+                }
+                String accessToken = UUID.randomUUID().toString();
+                appAccessTokens.put(accessToken, new Token(new User(params.get("appid"), null, null),
+                        System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ACCESS_TOKEN_EXPIRES_IN)));
+                Map<String, Object> result = new LinkedHashMap<>();
+                result.put("access_token", accessToken);
+                result.put("expires_in", ACCESS_TOKEN_EXPIRES_IN);
+                return result;
+            }
+        });
+        server.createContext("/cgi-bin/message/template/send", new ApiEndpoint() {
+            @Override
+            protected Map<String, Object> handle(Map<String, String> params) {
+                Token token = appAccessTokens.get(String.valueOf(params.get("access_token")));
+                if (token == null || token.expireTime < System.currentTimeMillis()) {
+                    return error(40001, "invalid credential, access_token is invalid or not latest");
+                }
+                if (!StringUtils.hasText(readToUser(params.get("body")))) {
+                    return error(40003, "invalid openid");
+                }
+                Map<String, Object> result = error(0, "ok");
+                result.put("msgid", messageIds.incrementAndGet());
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Looks up the user owning the access_token parameter, or null if the token is unknown or expired.
+     * @param params the request parameters
+     * @return the simulated user
+     */
+    protected User authorize(Map<String, String> params) {
+        Token token = accessTokens.get(String.valueOf(params.get("access_token")));
+        if (token == null || token.expireTime < System.currentTimeMillis()) {
+            return null;
+        }
+        return token.user;
+    }
+
+    private static String readToUser(String body) {
+        if (body == null) {
+            return null;
+        }
+        try {
+            Object toUser = objectMapper.readValue(body, Map.class).get("touser");
+            return toUser != null ? toUser.toString() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    protected static Map<String, Object> error(int errcode, String errmsg) {
+        Map<String, Object> result = new LinkedHashMap<>(4);
+        result.put("errcode", errcode);
+        result.put("errmsg", errmsg);
+        return result;
+    }
+
+    // internal helpers
+
+    private Map<String, Object> grant(User user, String refreshToken) {
+        String accessToken = UUID.randomUUID().toString();
+        accessTokens.put(accessToken, new Token(user, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ACCESS_TOKEN_EXPIRES_IN)));
+        refreshTokens.put(refreshToken, user);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("access_token", accessToken);
+        result.put("expires_in", ACCESS_TOKEN_EXPIRES_IN);
+        result.put("refresh_token", refreshToken);
+        result.put("openid", user.openId);
+        result.put("scope", "snsapi_login");
+        result.put("unionid", user.unionId);
+        return result;
+    }
+
+    private static Map<String, String> parseParameters(HttpExchange exchange) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        parseQuery(exchange.getRequestURI().getRawQuery(), params);
+        try (InputStream body = exchange.getRequestBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+                parseQuery(out.toString("UTF-8"), params);
+            } else if (out.size() > 0) {
+                params.put("body", out.toString("UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static void parseQuery(String query, Map<String, String> params) throws IOException {
+        if (!StringUtils.hasLength(query)) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            params.put(name, value);
+        }
+    }
+
+    private void delay() {
+        long min = minLatencyMillis;
+        long max = maxLatencyMillis;
+        long latency = max > min ? ThreadLocalRandom.current().nextLong(min, max + 1) : min;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Endpoint counting requests and applying the simulated latency, quota and error rate.
+     */
+    protected abstract class Endpoint implements HttpHandler {
+        private final boolean countTowardsQuota;
+
+        protected Endpoint(boolean countTowardsQuota) {
+            this.countTowardsQuota = countTowardsQuota;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            requestCount.incrementAndGet();
+            try {
+                delay();
+                Map<String, String> params = parseParameters(exchange);
+                if (countTowardsQuota && exceedsQuota(params)) {
+                    respond(exchange, error(45009, "reach max api daily quota limit"));
+                } else if (countTowardsQuota && errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    respond(exchange, error(-1, "system error"));
+                } else {
+                    handle(exchange, params);
+                }
+            } finally {
+                exchange.close();
+            }
+        }
+
+        protected abstract void handle(HttpExchange exchange, Map<String, String> params) throws IOException;
+
+        private boolean exceedsQuota(Map<String, String> params) {
+            String appId = params.get("appid");
+            if (appId == null) {
+                String accessToken = String.valueOf(params.get("access_token"));
+                Token token = accessTokens.get(accessToken);
+                if (token == null) {
+                    token = appAccessTokens.get(accessToken);
+                }
+                appId = token != null ? token.user.appId : "";
+            }
+            AtomicLong count = callCounts.computeIfAbsent(appId, key -> new AtomicLong());
+            return count.incrementAndGet() > quota;
+        }
+    }
+
+    /**
+     * Endpoint answering with a JSON document, like all of WeChat's API endpoints.
+     */
+    protected abstract class ApiEndpoint extends Endpoint {
+        protected ApiEndpoint() {
+            super(true);
+        }
+
+        @Override
+        protected final void handle(HttpExchange exchange, Map<String, String> params) throws IOException {
+            respond(exchange, handle(params));
+        }
+
+        protected abstract Map<String, Object> handle(Map<String, String> params);
+    }
+
+    private static void respond(HttpExchange exchange, Map<String, Object> result) throws IOException {
+        byte[] body = objectMapper.writeValueAsBytes(result);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; encoding=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * A simulated WeChat user as seen by one app.
+     */
+    protected static class User {
+        public final String appId;
+        public final String openId;
+        public final String unionId;
+
+        User(String appId, String openId, String unionId) {
+            this.appId = appId;
+            this.openId = openId;
+            this.unionId = unionId;
+        }
+    }
+
+    private static class Token {
+        final User user;
+        final long expireTime;
+
+        Token(User user, long expireTime) {
+            this.user = user;
+            this.expireTime = expireTime;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.springframework.social.wechat.simulator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.oauth2.AccessGrant;
+import org.springframework.social.wechat.api.WeChat;
+import org.springframework.social.wechat.connect.WeChatConnectionFactory;
+import org.springframework.util.Assert;
+
+/**
+ * Drives complete WeChat login flows against a {@link WeChatApiSimulator} and reports throughput and latency percentiles.
+ * Each login issues a code at the simulator, exchanges it through the connection factory's OAuth operations,
+ * creates the connection and materializes its {@link ConnectionData}, which fetches the user profile,
+ * i.e. the same calls a sign-in through spring-social makes.
+ * @author Sam Song
+ */
+public class WeChatLoadTestDriver {
+    private static final Log logger = LogFactory.getLog(WeChatLoadTestDriver.class);
+
+    private static final String REDIRECT_URI = "http://localhost/signin/wechat";
+
+    private final WeChatApiSimulator simulator;
+    private final WeChatConnectionFactory connectionFactory;
+
+    /**
+     * @param simulator the running simulator
+     * @param connectionFactory a connection factory whose service provider points at the simulator
+     */
+    public WeChatLoadTestDriver(WeChatApiSimulator simulator, WeChatConnectionFactory connectionFactory) {
+        Assert.notNull(simulator, "The simulator property cannot be null");
+        Assert.notNull(connectionFactory, "The connectionFactory property cannot be null");
+        this.simulator = simulator;
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * Runs the given number of logins from the given number of concurrent clients and waits for all of them.
+     * @param logins the total number of logins
+     * @param concurrency the number of logins in flight at a time
+     * @return the report of the run
+     * @throws InterruptedException if interrupted while waiting for the logins
+     */
+    public LoadTestReport run(int logins, int concurrency) throws InterruptedException {
+        final AtomicLongArray latencies = new AtomicLongArray(logins);
+        ExecutorService executorService = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Future<?>> futures = new ArrayList<>(logins);
+            long start = System.nanoTime();
+            for (int i = 0; i < logins; i++) {
+                final int login = i;
+                futures.add(executorService.submit(() -> latencies.set(login, login(login))));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.debug("Login failed", e.getCause());
+                }
+            }
+            long elapsedNanos = System.nanoTime() - start;
+            long[] succeeded = new long[logins];
+            int count = 0;
+            for (int i = 0; i < logins; i++) {
+                if (latencies.get(i) > 0) {
+                    succeeded[count++] = latencies.get(i);
+                }
+            }
+            return new LoadTestReport(logins, count, elapsedNanos, succeeded);
+        } finally {
+            executorService.shutdownNow();
+        }
+    }
+
+    // internal helpers
+
+    private long login(int login) {
+        long start = System.nanoTime();
+        String code = simulator.issueCode(connectionFactory.getAppId(), "user-" + login);
+        AccessGrant accessGrant = connectionFactory.getOAuthOperations().exchangeForAccess(code, REDIRECT_URI, null);
+        if (accessGrant.getAccessToken() == null) {
+            return 0;
+        }
+        Connection<WeChat> connection = connectionFactory.createConnection(accessGrant);
+        ConnectionData data = connection.createData();
+        if (data.getDisplayName() == null) {
+            return 0;
+        }
+        return Math.max(1, System.nanoTime() - start);
+    }
+}
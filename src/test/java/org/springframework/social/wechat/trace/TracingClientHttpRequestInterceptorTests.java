@@ -0,0 +1,97 @@
+package org.springframework.social.wechat.trace;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.oauth2.AccessGrant;
+import org.springframework.social.wechat.api.impl.WeChatTemplate;
+import org.springframework.social.wechat.connect.WeChatConnectionFactory;
+import org.springframework.social.wechat.connect.WeChatServiceProvider;
+import org.springframework.social.wechat.simulator.WeChatApiSimulator;
+
+/**
+ * Checks the spans recorded by {@link TracingClientHttpRequestInterceptor} for calls to a {@link WeChatApiSimulator}.
+ * @author Sam Song
+ */
+public class TracingClientHttpRequestInterceptorTests {
+    private final WeChatApiSimulator simulator = new WeChatApiSimulator();
+    private final InMemorySpanExporter exporter = new InMemorySpanExporter();
+    private final WeChatTracer tracer = new WeChatTracer(exporter);
+
+    @Before
+    public void setUp() throws Exception {
+        simulator.start();
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+        TraceContext.clear();
+    }
+
+    @Test
+    public void recordErrorCodeAndAttempt() {
+        WeChatTemplate weChatTemplate = new WeChatTemplate("invalidToken", simulator.getBaseUrl());
+        weChatTemplate.setTracer(tracer, "appId");
+        TraceContext.setAttempt(2);
+        assertFalse(weChatTemplate.userOperations().validateToken());
+
+        List<Span> spans = exporter.getSpans();
+        assertEquals(1, spans.size());
+        Span span = spans.get(0);
+        assertEquals("/sns/auth", span.getEndpoint());
+        assertEquals("appId", span.getAppId());
+        assertEquals(2, span.getAttempt());
+        assertEquals(200, span.getStatusCode());
+        assertEquals(Integer.valueOf(40001), span.getErrorCode());
+        assertNull(span.getError());
+    }
+
+    @Test
+    public void replaceInterceptorWhenTracerIsSetAgain() {
+        WeChatTemplate weChatTemplate = new WeChatTemplate("invalidToken", simulator.getBaseUrl());
+        weChatTemplate.setTracer(new WeChatTracer(new InMemorySpanExporter()), "appId");
+        weChatTemplate.setTracer(tracer, "appId");
+        weChatTemplate.userOperations().validateToken();
+        assertEquals(1, exporter.getSpans().size());
+    }
+
+    @Test
+    public void traceCodeExchangeOnce() {
+        WeChatConnectionFactory connectionFactory = new WeChatConnectionFactory("appId",
+                new WeChatServiceProvider("appId", "appSecret", simulator.getBaseUrl(), simulator.getBaseUrl(), null));
+        connectionFactory.setTracer(tracer);
+        connectionFactory.setTracer(tracer);
+        AccessGrant accessGrant = connectionFactory.getOAuthOperations()
+                .exchangeForAccess(simulator.issueCode("appId", "user"), "http://localhost/callback", null);
+
+        List<Span> spans = exporter.getSpans();
+        assertEquals(1, spans.size());
+        Span span = spans.get(0);
+        assertEquals("/sns/oauth2/access_token", span.getEndpoint());
+        assertEquals("appId", span.getAppId());
+        assertEquals(1, span.getAttempt());
+        assertNull(span.getErrorCode());
+        assertNotNull(accessGrant.getAccessToken());
+    }
+
+    @Test
+    public void extractErrorCode() {
+        assertEquals(Integer.valueOf(-1), TracingClientHttpRequestInterceptor.extractErrorCode(bytes("{\"errcode\": -1,\"errmsg\":\"system error\"}")));
+        assertEquals(Integer.valueOf(0), TracingClientHttpRequestInterceptor.extractErrorCode(bytes("{\"errcode\":0}")));
+        assertNull(TracingClientHttpRequestInterceptor.extractErrorCode(bytes("{\"access_token\":\"token\"}")));
+        assertNull(TracingClientHttpRequestInterceptor.extractErrorCode(bytes("{\"errcode\":\"x\"}")));
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}